@@ -0,0 +1,82 @@
+package mygame;
+
+import com.jme3.app.Application;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads assets on background threads while the render thread keeps drawing.
+ *
+ * Each asset is loaded through the shared asset manager, which also leaves it
+ * in the cache for later synchronous loads. Results are handed back to the
+ * render thread with {@link Application#enqueue}, so callbacks may touch the
+ * scene graph.
+ */
+public class AssetPreloader {
+
+    private final Application app;
+    private final AssetManager assetManager;
+    private final ExecutorService executor;
+
+    private final AtomicInteger requested = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public AssetPreloader(Application app, int threads) {
+        this.app = app;
+        this.assetManager = app.getAssetManager();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "AssetPreloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts loading an asset and calls back on the render thread once it is ready.
+     */
+    public <T> void load(AssetKey<T> key, Consumer<T> onLoaded) {
+        requested.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                T asset = assetManager.loadAsset(key);
+                app.enqueue(() -> {
+                    onLoaded.accept(asset);
+                    loaded.incrementAndGet();
+                });
+            } catch (RuntimeException e) {
+                // Leave it to the synchronous load later to report the error
+                e.printStackTrace();
+                failed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Starts loading an asset only to warm the asset cache.
+     */
+    public void warm(AssetKey<?> key) {
+        load(key, asset -> { });
+    }
+
+    /**
+     * Fraction of requested assets that have been loaded or given up on.
+     */
+    public float getProgress() {
+        int total = requested.get();
+        return total == 0 ? 1f : (loaded.get() + failed.get()) / (float) total;
+    }
+
+    public boolean isDone() {
+        return loaded.get() + failed.get() == requested.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,211 @@
+package mygame;
+
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.instancing.InstancedNode;
+import com.jme3.scene.shape.Box;
+
+import java.util.Arrays;
+
+/**
+ * Draws the city's buildings with hardware instancing.
+ *
+ * Every building and roof shares one unit box mesh, scaled per instance, so
+ * the whole city costs one draw call per material. Buildings are sorted into
+ * three distance bands around the camera:
+ * near buildings get a body and a separate roof, far buildings are a single
+ * box impostor covering both, and anything past the view distance is culled.
+ * An optional {@link OcclusionCuller} also culls buildings hidden behind others.
+ */
+public class BuildingRenderer {
+
+    private static final int NEAR = 0;
+    private static final int FAR = 1;
+    private static final int CULLED = 2;
+
+    // Only re-sort buildings once the camera has moved this far
+    private static final float UPDATE_DISTANCE = 2f;
+
+    private final Mesh unitBox = new Box(0.5f, 0.5f, 0.5f);
+    private final Node node = new Node("Buildings");
+    private final InstancedNode nearNode = new InstancedNode("BuildingsNear");
+    private final InstancedNode farNode = new InstancedNode("BuildingsFar");
+
+    private float lodDistance;
+    private float viewDistance;
+    private OcclusionCuller occlusionCuller;
+
+    // Per building data, indexed by building id
+    private int count = 0;
+    private float[] posX = new float[64];
+    private float[] posZ = new float[64];
+    private Geometry[] bodies = new Geometry[64];
+    private Geometry[] roofs = new Geometry[64];
+    private Geometry[] impostors = new Geometry[64];
+    private byte[] bands = new byte[64];
+
+    private final Vector3f lastUpdate = new Vector3f(Float.MAX_VALUE, 0, Float.MAX_VALUE);
+
+    public BuildingRenderer(float lodDistance, float viewDistance) {
+        this.lodDistance = lodDistance;
+        this.viewDistance = viewDistance;
+        node.attachChild(nearNode);
+        node.attachChild(farNode);
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * The unit box shared by every building, roof and impostor.
+     */
+    public Mesh getMesh() {
+        return unitBox;
+    }
+
+    /**
+     * Adds a building standing on the ground at (x, z). Materials must have
+     * UseInstancing enabled.
+     *
+     * @return the building's id
+     */
+    public int addBuilding(float x, float z, float width, float height, float depth,
+            Material buildingMat, Material roofMat, float roofHeight, float roofOverhang) {
+        if (count == posX.length) {
+            grow();
+        }
+        int id = count++;
+        posX[id] = x;
+        posZ[id] = z;
+
+        Geometry body = new Geometry("Building", unitBox);
+        body.setMaterial(buildingMat);
+        body.setLocalScale(width, height, depth);
+        body.setLocalTranslation(x, height / 2, z);
+
+        Geometry roof = new Geometry("Roof", unitBox);
+        roof.setMaterial(roofMat);
+        roof.setLocalScale(width + roofOverhang * 2, roofHeight, depth + roofOverhang * 2);
+        roof.setLocalTranslation(x, height + roofHeight / 2, z);
+
+        // Impostor: one box from the ground to the top of the roof
+        float totalHeight = height + roofHeight;
+        Geometry impostor = new Geometry("Building", unitBox);
+        impostor.setMaterial(buildingMat);
+        impostor.setLocalScale(width, totalHeight, depth);
+        impostor.setLocalTranslation(x, totalHeight / 2, z);
+
+        bodies[id] = body;
+        roofs[id] = roof;
+        impostors[id] = impostor;
+        bands[id] = CULLED;
+        return id;
+    }
+
+    public int getBuildingCount() {
+        return count;
+    }
+
+    public Geometry getBody(int id) {
+        return bodies[id];
+    }
+
+    public Geometry getRoof(int id) {
+        return roofs[id];
+    }
+
+    public void setDistances(float lodDistance, float viewDistance) {
+        this.lodDistance = lodDistance;
+        this.viewDistance = viewDistance;
+        lastUpdate.set(Float.MAX_VALUE, 0, Float.MAX_VALUE);
+    }
+
+    public float getViewDistance() {
+        return viewDistance;
+    }
+
+    public void setOcclusionCuller(OcclusionCuller occlusionCuller) {
+        this.occlusionCuller = occlusionCuller;
+        lastUpdate.set(Float.MAX_VALUE, 0, Float.MAX_VALUE);
+    }
+
+    /**
+     * Moves buildings between distance bands. Only the buildings whose band
+     * changed touch the scene graph, so a still camera costs nothing.
+     */
+    public void update(Vector3f camLocation) {
+        // Occlusion is only exact for the position it was computed at, so with
+        // a culler any camera movement triggers an update
+        float movedSq = camLocation.distanceSquared(lastUpdate);
+        if (movedSq == 0 || (occlusionCuller == null && movedSq < UPDATE_DISTANCE * UPDATE_DISTANCE)) {
+            return;
+        }
+        lastUpdate.set(camLocation);
+        if (occlusionCuller != null) {
+            occlusionCuller.cull(camLocation, viewDistance);
+        }
+
+        float lodSq = lodDistance * lodDistance;
+        float viewSq = viewDistance * viewDistance;
+        boolean changed = false;
+
+        for (int i = 0; i < count; i++) {
+            float bx = posX[i] - camLocation.x;
+            float bz = posZ[i] - camLocation.z;
+            float distSq = bx * bx + bz * bz;
+            int band = distSq < lodSq ? NEAR : distSq < viewSq ? FAR : CULLED;
+            if (band != CULLED && occlusionCuller != null && occlusionCuller.isOccluded(i)) {
+                band = CULLED;
+            }
+            if (band != bands[i]) {
+                setBand(i, band);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            nearNode.instance();
+            farNode.instance();
+        }
+    }
+
+    private void setBand(int id, int band) {
+        switch (bands[id]) {
+            case NEAR:
+                nearNode.detachChild(bodies[id]);
+                nearNode.detachChild(roofs[id]);
+                break;
+            case FAR:
+                farNode.detachChild(impostors[id]);
+                break;
+            default:
+                break;
+        }
+        switch (band) {
+            case NEAR:
+                nearNode.attachChild(bodies[id]);
+                nearNode.attachChild(roofs[id]);
+                break;
+            case FAR:
+                farNode.attachChild(impostors[id]);
+                break;
+            default:
+                break;
+        }
+        bands[id] = (byte) band;
+    }
+
+    private void grow() {
+        int size = posX.length * 2;
+        posX = Arrays.copyOf(posX, size);
+        posZ = Arrays.copyOf(posZ, size);
+        bodies = Arrays.copyOf(bodies, size);
+        roofs = Arrays.copyOf(roofs, size);
+        impostors = Arrays.copyOf(impostors, size);
+        bands = Arrays.copyOf(bands, size);
+    }
+}
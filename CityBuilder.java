@@ -0,0 +1,243 @@
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import com.jme3.texture.Texture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a {@link CityLayout} into the city: the ground, instanced buildings
+ * with their occlusion grid, static box bodies for every building and roof,
+ * and the rooftop jump graph.
+ *
+ * The game builds one grid row per frame behind its loading screen, and the
+ * benchmarks build the same city in one go, so both run this code. The
+ * headless courier server only needs the bodies, which it adds through the
+ * same static helpers.
+ */
+public class CityBuilder {
+
+    // The ground reaches at least this far from the centre, even for small grids
+    static final float GROUND_HALF_EXTENT = 100f;
+
+    // Roof slab on top of every building
+    static final float ROOF_HEIGHT = 0.4f;
+    static final float ROOF_OVERHANG = 0.5f;
+
+    private final PhysicsSpace space;
+    private final CityLayout layout;
+
+    private final Node node = new Node("City");
+    private final BuildingRenderer buildingRenderer;
+    private final OcclusionCuller occlusionCuller;
+    private final RooftopGraph rooftopGraph = new RooftopGraph();
+    private final float startX;
+    private final float startZ;
+    private final Material[] buildingMats;
+    private final Material roofMat;
+
+    // Centre of each roof, just above it, in building order
+    private final List<Vector3f> deliveryLocations = new ArrayList<>();
+    private Vector3f shopLocation;
+    private int nextRow = 0;
+
+    /**
+     * Creates the ground, materials and city-wide structures. Buildings are
+     * then added a row at a time by {@link #buildRow()}.
+     *
+     * @param groundTexture tiled over the ground, or null for plain ground
+     */
+    public CityBuilder(AssetManager assetManager, PhysicsSpace space, LightBaker lightBaker, CityLayout layout,
+            Texture groundTexture, float lodDistance, float viewDistance) {
+        this.space = space;
+        this.layout = layout;
+
+        // Create ground
+        float halfExtent = worldHalfExtent(layout.gridSize, layout.spacing);
+        Box groundBox = new Box(halfExtent, 0.5f, halfExtent);
+        Geometry ground = new Geometry("Ground", groundBox);
+        Material groundMat = LightBaker.createMaterial(assetManager, ColorRGBA.White);
+        if (groundTexture != null) {
+            groundTexture.setWrap(Texture.WrapMode.Repeat);
+            groundMat.setTexture("ColorMap", groundTexture);
+        }
+        ground.setMaterial(groundMat);
+        ground.setLocalTranslation(0, -0.5f, 0);
+        lightBaker.bake(ground);
+
+        // Add physics to ground
+        addGroundBody(space, halfExtent, ground);
+        node.attachChild(ground);
+
+        // Materials for buildings and rooftops
+        float[] colors = layout.materialColors;
+        buildingMats = new Material[CityLayout.MATERIAL_COUNT];
+        for (int i = 0; i < buildingMats.length; i++) {
+            buildingMats[i] = LightBaker.createMaterial(assetManager, new ColorRGBA(
+                    colors[i * 3], colors[i * 3 + 1], colors[i * 3 + 2], 1.0f));
+            buildingMats[i].setBoolean("UseInstancing", true);
+        }
+
+        roofMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.8f, 0.2f, 0.2f, 1.0f)); // Reddish roofs
+        roofMat.setBoolean("UseInstancing", true);
+
+        // Buildings share one instanced unit box, with distance LOD and culling;
+        // its faces are axis-aligned, so one bake lights every building
+        buildingRenderer = new BuildingRenderer(lodDistance, viewDistance);
+        lightBaker.bakeMesh(buildingRenderer.getMesh(), Quaternion.IDENTITY);
+        node.attachChild(buildingRenderer.getNode());
+
+        // Grid of buildings centred on the origin
+        startX = -(layout.gridSize * layout.spacing) / 2 + layout.spacing / 2;
+        startZ = -(layout.gridSize * layout.spacing) / 2 + layout.spacing / 2;
+
+        // Buildings hidden behind nearer ones are skipped before rendering
+        occlusionCuller = new OcclusionCuller(layout.gridSize, startX, startZ, layout.spacing);
+        buildingRenderer.setOcclusionCuller(occlusionCuller);
+    }
+
+    /**
+     * Half the width of the ground, which covers the whole building grid.
+     */
+    public static float worldHalfExtent(int gridSize, float spacing) {
+        return Math.max(GROUND_HALF_EXTENT, gridSize * spacing / 2 + spacing);
+    }
+
+    /**
+     * Adds the static box under the ground plane.
+     *
+     * @param userObject reported by collision events, may be null
+     */
+    public static void addGroundBody(PhysicsSpace space, float halfExtent, Object userObject) {
+        PhysicsRigidBody ground = new PhysicsRigidBody(
+                new BoxCollisionShape(new Vector3f(halfExtent, 0.5f, halfExtent)), 0);
+        ground.setPhysicsLocation(new Vector3f(0, -0.5f, 0));
+        ground.setUserObject(userObject);
+        space.add(ground);
+    }
+
+    /**
+     * Adds the static boxes of a building standing on the ground at (x, z)
+     * and of its roof slab.
+     *
+     * @param bodyUser reported by collision events with the building, may be null
+     * @param roofUser reported by collision events with the roof, may be null
+     */
+    public static void addBuildingBodies(PhysicsSpace space, float x, float z,
+            float width, float height, float depth, Object bodyUser, Object roofUser) {
+        PhysicsRigidBody body = new PhysicsRigidBody(
+                new BoxCollisionShape(new Vector3f(width/2, height/2, depth/2)), 0);
+        body.setPhysicsLocation(new Vector3f(x, height/2, z));
+        body.setUserObject(bodyUser);
+
+        PhysicsRigidBody roof = new PhysicsRigidBody(new BoxCollisionShape(new Vector3f(
+                width/2 + ROOF_OVERHANG, ROOF_HEIGHT / 2, depth/2 + ROOF_OVERHANG)), 0);
+        roof.setPhysicsLocation(new Vector3f(x, height + ROOF_HEIGHT / 2, z));
+        roof.setUserObject(roofUser);
+
+        space.add(body);
+        space.add(roof);
+    }
+
+    /**
+     * Creates the buildings in the next row of the grid.
+     */
+    public void buildRow() {
+        int x = nextRow++;
+        for (int b = layout.rowStart[x]; b < layout.rowStart[x + 1]; b++) {
+            int z = layout.cellZ[b];
+
+            // Calculate building position
+            float posX = startX + x * layout.spacing;
+            float posZ = startZ + z * layout.spacing;
+
+            // Building dimensions
+            float width = layout.width[b];
+            float height = layout.height[b];
+            float depth = layout.depth[b];
+
+            // Create building and rooftop
+            int id = buildingRenderer.addBuilding(posX, posZ, width, height, depth,
+                    buildingMats[layout.material[b]], roofMat, ROOF_HEIGHT, ROOF_OVERHANG);
+            occlusionCuller.addBuilding(x, z, id, posX, posZ, width/2, depth/2, height + ROOF_HEIGHT, ROOF_OVERHANG);
+
+            // Add box physics to building and roof; the geometries stay the
+            // user objects so collision events still report their names
+            addBuildingBodies(space, posX, posZ, width, height, depth,
+                    buildingRenderer.getBody(id), buildingRenderer.getRoof(id));
+
+            // Track as potential delivery location
+            deliveryLocations.add(new Vector3f(posX, height + 0.5f, posZ));
+            rooftopGraph.addRoof(posX, height + ROOF_HEIGHT, posZ, width/2 + ROOF_OVERHANG, depth/2 + ROOF_OVERHANG);
+
+            // If it's the center building, mark as pizza shop
+            if (b == layout.shopBuilding) {
+                shopLocation = new Vector3f(posX, height + 0.5f, posZ);
+            }
+        }
+    }
+
+    public int getRowsBuilt() {
+        return nextRow;
+    }
+
+    public boolean isComplete() {
+        return nextRow == layout.gridSize;
+    }
+
+    /**
+     * Connects the roofs the player can jump between, reusing the edges cached
+     * with the layout when the jump parameters are unchanged.
+     */
+    public void finish(float jumpSpeed, float runSpeed, float gravity, float playerRadius) {
+        int graphKey = RooftopGraph.parameterHash(jumpSpeed, runSpeed, gravity, playerRadius);
+        if (!layout.loadGraph(rooftopGraph, graphKey)) {
+            rooftopGraph.build(jumpSpeed, runSpeed, gravity, playerRadius);
+            layout.saveGraph(rooftopGraph, graphKey);
+        }
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public BuildingRenderer getBuildingRenderer() {
+        return buildingRenderer;
+    }
+
+    public RooftopGraph getRooftopGraph() {
+        return rooftopGraph;
+    }
+
+    /**
+     * World x of the first grid column's centre.
+     */
+    public float getStartX() {
+        return startX;
+    }
+
+    /**
+     * Where a delivery platform on a building's roof goes.
+     */
+    public Vector3f getDeliveryLocation(int building) {
+        return deliveryLocations.get(building);
+    }
+
+    /**
+     * Where the pizza shop goes, or null if the centre cell is empty.
+     */
+    public Vector3f getShopLocation() {
+        return shopLocation;
+    }
+}
@@ -0,0 +1,473 @@
+package mygame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The generated city as plain data: building boxes, material colours and the
+ * chosen delivery roofs.
+ *
+ * Every building is a box on a grid cell, so this data fully describes both
+ * the instanced geometry and the box collision shapes. Layouts are cached in a
+ * small binary file keyed by seed, grid size and a hash of the generator
+ * parameters, together with the rooftop jump graph built over them, which is
+ * the slow part of setting up a large city. A cached file whose header or
+ * checksum does not match, or whose contents are out of range, is regenerated.
+ */
+public class CityLayout {
+
+    // Bump when the generation algorithm changes in a way the parameters below don't capture
+    static final int GENERATOR_VERSION = 1;
+
+    // Bump when the file layout changes
+    static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x50504359; // "PPCY"
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int CHECKSUM_OFFSET = HEADER_SIZE - 4;
+
+    // Generator parameters
+    static final int MATERIAL_COUNT = 5;
+    static final float SKIP_CHANCE = 0.2f;
+    static final float MIN_WIDTH = 8f, WIDTH_RANGE = 5f;
+    static final float MIN_HEIGHT = 10f, HEIGHT_RANGE = 20f;
+    static final float MIN_DEPTH = 8f, DEPTH_RANGE = 5f;
+    static final int DELIVERY_COUNT = 3;
+
+    final long seed;
+    final int gridSize;
+    final float spacing;
+
+    // Building colours, RGB per material
+    final float[] materialColors = new float[MATERIAL_COUNT * 3];
+
+    // Buildings in grid order (x major, then z); rowStart[x] is the first building of row x
+    int count;
+    int[] cellX;
+    int[] cellZ;
+    float[] width;
+    float[] height;
+    float[] depth;
+    byte[] material;
+    int[] rowStart;
+
+    // Building index of the pizza shop (-1 if its cell is empty) and of the delivery roofs
+    int shopBuilding = -1;
+    int[] deliveryBuildings;
+
+    // Jump edges of the rooftop graph over these buildings, in RooftopGraph's
+    // layout and keyed by its parameter hash; edgeTarget is null until cached
+    int graphKey;
+    float graphBucketSize;
+    int[] edgeStart;
+    int[] edgeTarget;
+    float[] edgeCost;
+
+    // Where the layout was loaded from or saved to, for adding the graph later
+    private Path cacheFile;
+
+    private CityLayout(long seed, int gridSize, float spacing) {
+        this.seed = seed;
+        this.gridSize = gridSize;
+        this.spacing = spacing;
+    }
+
+    /**
+     * Runs the generator. The order of random draws matches the original
+     * createCity, so a given seed always produces the same city.
+     */
+    public static CityLayout generate(long seed, int gridSize, float spacing) {
+        CityLayout layout = new CityLayout(seed, gridSize, spacing);
+        layout.allocate(gridSize * gridSize);
+        Random random = new Random(seed);
+
+        for (int i = 0; i < MATERIAL_COUNT * 3; i++) {
+            layout.materialColors[i] = 0.4f + random.nextFloat() * 0.3f;
+        }
+
+        int n = 0;
+        for (int x = 0; x < gridSize; x++) {
+            layout.rowStart[x] = n;
+            for (int z = 0; z < gridSize; z++) {
+                // Skip some positions randomly to create irregular city layout
+                if (random.nextFloat() < SKIP_CHANCE) continue;
+
+                layout.cellX[n] = x;
+                layout.cellZ[n] = z;
+                layout.width[n] = MIN_WIDTH + random.nextFloat() * WIDTH_RANGE;
+                layout.height[n] = MIN_HEIGHT + random.nextFloat() * HEIGHT_RANGE;
+                layout.depth[n] = MIN_DEPTH + random.nextFloat() * DEPTH_RANGE;
+                layout.material[n] = (byte) random.nextInt(MATERIAL_COUNT);
+
+                // The center building is the pizza shop
+                if (x == gridSize / 2 && z == gridSize / 2) {
+                    layout.shopBuilding = n;
+                }
+                n++;
+            }
+        }
+        layout.rowStart[gridSize] = n;
+        layout.count = n;
+
+        // Choose random delivery roofs from the rest
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (i != layout.shopBuilding) {
+                candidates.add(i);
+            }
+        }
+        int picks = Math.min(DELIVERY_COUNT, candidates.size());
+        layout.deliveryBuildings = new int[picks];
+        for (int i = 0; i < picks; i++) {
+            layout.deliveryBuildings[i] = candidates.remove(random.nextInt(candidates.size()));
+        }
+        return layout;
+    }
+
+    /**
+     * World x of a building's centre, with the grid centred on the origin.
+     */
+    public float buildingX(int building) {
+        return -(gridSize * spacing) / 2 + spacing / 2 + cellX[building] * spacing;
+    }
+
+    /**
+     * World z of a building's centre, with the grid centred on the origin.
+     */
+    public float buildingZ(int building) {
+        return -(gridSize * spacing) / 2 + spacing / 2 + cellZ[building] * spacing;
+    }
+
+    /**
+     * Loads the cached layout for these parameters, generating and caching it if
+     * there is no valid cache file.
+     */
+    public static CityLayout loadOrGenerate(Path cacheDir, long seed, int gridSize, float spacing) {
+        Path file = cacheDir.resolve("city-" + seed + "-" + gridSize + ".bin");
+        try {
+            CityLayout cached = read(file, seed, gridSize, spacing);
+            if (cached != null) {
+                cached.cacheFile = file;
+                return cached;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable city cache " + file + ": " + e);
+        }
+
+        CityLayout layout = generate(seed, gridSize, spacing);
+        layout.cacheFile = file;
+        layout.save();
+        return layout;
+    }
+
+    /**
+     * Gives the graph the cached jump edges, if they were built with the same
+     * parameters. The graph must hold one roof per building, in building order.
+     *
+     * @return false if there are no matching edges and the graph must be built
+     */
+    public boolean loadGraph(RooftopGraph graph, int key) {
+        if (edgeTarget == null || graphKey != key || graph.getNodeCount() != count) {
+            return false;
+        }
+        graph.setEdges(edgeStart, edgeTarget, edgeCost, graphBucketSize);
+        return true;
+    }
+
+    /**
+     * Stores a freshly built graph's edges and rewrites the cache file with them.
+     */
+    public void saveGraph(RooftopGraph graph, int key) {
+        graphKey = key;
+        graphBucketSize = graph.getBucketSize();
+        edgeStart = graph.getEdgeStarts();
+        edgeTarget = graph.getEdgeTargets();
+        edgeCost = graph.getEdgeCosts();
+        save();
+    }
+
+    private void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            write(cacheFile);
+        } catch (IOException e) {
+            // The cache only saves time; the game runs fine without it
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a cache file through a memory mapping.
+     *
+     * @return the layout, or null if the file is missing, was made with other
+     *         parameters or fails its checksum or range checks
+     */
+    static CityLayout read(Path file, long seed, int gridSize, float spacing) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != parameterHash()
+                    || buffer.getLong() != seed
+                    || buffer.getInt() != gridSize
+                    || buffer.getFloat() != spacing) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int deliveries = buffer.getInt();
+            int edges = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (count < 0 || count > gridSize * gridSize || deliveries < 0 || deliveries > count
+                    || edges < -1 || edges > (long) count * count
+                    || buffer.remaining() != bodySize(count, gridSize, deliveries, edges)) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            CityLayout layout = new CityLayout(seed, gridSize, spacing);
+            layout.allocate(count);
+            layout.count = count;
+            for (int i = 0; i < MATERIAL_COUNT * 3; i++) {
+                layout.materialColors[i] = buffer.getFloat();
+            }
+            for (int i = 0; i < count; i++) {
+                layout.cellX[i] = buffer.getShort();
+                layout.cellZ[i] = buffer.getShort();
+                layout.width[i] = buffer.getFloat();
+                layout.height[i] = buffer.getFloat();
+                layout.depth[i] = buffer.getFloat();
+                layout.material[i] = buffer.get();
+            }
+            for (int x = 0; x <= gridSize; x++) {
+                layout.rowStart[x] = buffer.getInt();
+            }
+            layout.shopBuilding = buffer.getInt();
+            layout.deliveryBuildings = new int[deliveries];
+            for (int i = 0; i < deliveries; i++) {
+                layout.deliveryBuildings[i] = buffer.getInt();
+            }
+            layout.graphKey = buffer.getInt();
+            layout.graphBucketSize = buffer.getFloat();
+            if (edges >= 0) {
+                layout.edgeStart = new int[count + 1];
+                layout.edgeTarget = new int[edges];
+                layout.edgeCost = new float[edges];
+                buffer.asIntBuffer().get(layout.edgeStart);
+                buffer.position(buffer.position() + (count + 1) * 4);
+                buffer.asIntBuffer().get(layout.edgeTarget);
+                buffer.position(buffer.position() + edges * 4);
+                buffer.asFloatBuffer().get(layout.edgeCost);
+            }
+            return layout.isValid() ? layout : null;
+        }
+    }
+
+    /**
+     * Checks everything the game indexes with against what generate() can
+     * produce, so a damaged file is regenerated instead of failing later.
+     */
+    private boolean isValid() {
+        int previousCell = -1;
+        for (int i = 0; i < count; i++) {
+            if (cellX[i] < 0 || cellX[i] >= gridSize || cellZ[i] < 0 || cellZ[i] >= gridSize) {
+                return false;
+            }
+            // Grid order, each cell at most once
+            int cell = cellX[i] * gridSize + cellZ[i];
+            if (cell <= previousCell) {
+                return false;
+            }
+            previousCell = cell;
+            if (!inRange(width[i], MIN_WIDTH, WIDTH_RANGE)
+                    || !inRange(height[i], MIN_HEIGHT, HEIGHT_RANGE)
+                    || !inRange(depth[i], MIN_DEPTH, DEPTH_RANGE)
+                    || material[i] < 0 || material[i] >= MATERIAL_COUNT) {
+                return false;
+            }
+        }
+        for (float color : materialColors) {
+            if (!inRange(color, 0.4f, 0.3f)) {
+                return false;
+            }
+        }
+
+        // Row starts must match the buildings' rows exactly
+        if (rowStart[0] != 0 || rowStart[gridSize] != count) {
+            return false;
+        }
+        for (int x = 0; x < gridSize; x++) {
+            int start = rowStart[x];
+            int end = rowStart[x + 1];
+            if (end < start || (start < end && (cellX[start] != x || cellX[end - 1] != x))) {
+                return false;
+            }
+        }
+
+        if (shopBuilding < -1 || shopBuilding >= count || (shopBuilding >= 0
+                && (cellX[shopBuilding] != gridSize / 2 || cellZ[shopBuilding] != gridSize / 2))) {
+            return false;
+        }
+        if (deliveryBuildings.length != Math.min(DELIVERY_COUNT, shopBuilding >= 0 ? count - 1 : count)) {
+            return false;
+        }
+        for (int i = 0; i < deliveryBuildings.length; i++) {
+            int building = deliveryBuildings[i];
+            if (building < 0 || building >= count || building == shopBuilding) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (deliveryBuildings[j] == building) {
+                    return false;
+                }
+            }
+        }
+
+        if (edgeTarget != null) {
+            if (edgeStart[0] != 0 || edgeStart[count] != edgeTarget.length || !(graphBucketSize >= 1)) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (edgeStart[i + 1] < edgeStart[i]) {
+                    return false;
+                }
+            }
+            for (int e = 0; e < edgeTarget.length; e++) {
+                if (edgeTarget[e] < 0 || edgeTarget[e] >= count || !(edgeCost[e] >= 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean inRange(float value, float min, float range) {
+        // Written so that NaN fails too
+        return value >= min && value <= min + range;
+    }
+
+    /**
+     * Writes the layout to a temporary file and moves it into place, so a
+     * crash never leaves a half-written cache behind.
+     */
+    void write(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        int edges = edgeTarget == null ? -1 : edgeTarget.length;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + bodySize(count, gridSize, deliveryBuildings.length, edges)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(parameterHash());
+        buffer.putLong(seed);
+        buffer.putInt(gridSize);
+        buffer.putFloat(spacing);
+        buffer.putInt(count);
+        buffer.putInt(deliveryBuildings.length);
+        buffer.putInt(edges);
+        buffer.putInt(0); // checksum, filled in below
+        for (float color : materialColors) {
+            buffer.putFloat(color);
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putShort((short) cellX[i]);
+            buffer.putShort((short) cellZ[i]);
+            buffer.putFloat(width[i]);
+            buffer.putFloat(height[i]);
+            buffer.putFloat(depth[i]);
+            buffer.put(material[i]);
+        }
+        for (int x = 0; x <= gridSize; x++) {
+            buffer.putInt(rowStart[x]);
+        }
+        buffer.putInt(shopBuilding);
+        for (int building : deliveryBuildings) {
+            buffer.putInt(building);
+        }
+        buffer.putInt(graphKey);
+        buffer.putFloat(graphBucketSize);
+        if (edges >= 0) {
+            for (int start : edgeStart) {
+                buffer.putInt(start);
+            }
+            for (int target : edgeTarget) {
+                buffer.putInt(target);
+            }
+            for (float cost : edgeCost) {
+                buffer.putFloat(cost);
+            }
+        }
+        buffer.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(HEADER_SIZE));
+        buffer.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long bodySize(int count, int gridSize, int deliveries, int edges) {
+        long graph = edges < 0 ? 0 : (count + 1) * 4L + edges * 8L;
+        return MATERIAL_COUNT * 3 * 4 + count * (2 + 2 + 4 + 4 + 4 + 1) + (gridSize + 1) * 4 + 4 + deliveries * 4
+                + 4 + 4 + graph;
+    }
+
+    /**
+     * Hash of everything that shapes the generated city besides seed and grid
+     * size. Any change to these makes existing cache files invalid.
+     */
+    static int parameterHash() {
+        int hash = GENERATOR_VERSION;
+        hash = hash * 31 + FORMAT_VERSION;
+        hash = hash * 31 + MATERIAL_COUNT;
+        hash = hash * 31 + Float.floatToIntBits(SKIP_CHANCE);
+        hash = hash * 31 + Float.floatToIntBits(MIN_WIDTH);
+        hash = hash * 31 + Float.floatToIntBits(WIDTH_RANGE);
+        hash = hash * 31 + Float.floatToIntBits(MIN_HEIGHT);
+        hash = hash * 31 + Float.floatToIntBits(HEIGHT_RANGE);
+        hash = hash * 31 + Float.floatToIntBits(MIN_DEPTH);
+        hash = hash * 31 + Float.floatToIntBits(DEPTH_RANGE);
+        hash = hash * 31 + DELIVERY_COUNT;
+        return hash;
+    }
+
+    private void allocate(int capacity) {
+        cellX = new int[capacity];
+        cellZ = new int[capacity];
+        width = new float[capacity];
+        height = new float[capacity];
+        depth = new float[capacity];
+        material = new byte[capacity];
+        rowStart = new int[gridSize + 1];
+    }
+}
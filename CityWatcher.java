@@ -0,0 +1,174 @@
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Loads cities from a text file and watches it for edits.
+ *
+ * Each line is {@code name,latitude,longitude,url}; blank lines and lines
+ * starting with # are skipped. The name may itself contain commas, as the
+ * other fields are taken from the right. When the file changes it is re-read
+ * on the watcher thread and compared line by line with the last version.
+ * Only new or edited lines are parsed and projected. The resulting diff is
+ * handed to the listener on the event dispatch thread.
+ */
+public class CityWatcher {
+
+    /**
+     * Changes between two versions of the file, keyed by city name.
+     */
+    public static class Diff {
+        public final List<WorldMapApplication.City> added = new ArrayList<>();
+        public final List<WorldMapApplication.City> changed = new ArrayList<>();
+        public final Set<String> removed = new HashSet<>();
+
+        public boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    // Editors often write a file in several steps; wait for them to finish
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path file;
+    private final MapProjection projection;
+    // Raw line per city name, from the last read
+    private Map<String, String> lines = new HashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    public CityWatcher(Path file, MapProjection projection) {
+        this.file = file.toAbsolutePath();
+        this.projection = projection;
+    }
+
+    /**
+     * Reads the whole file and remembers it as the baseline for later diffs.
+     */
+    public List<WorldMapApplication.City> load() throws IOException {
+        lines.clear();
+        return read().added;
+    }
+
+    /**
+     * Starts watching on a daemon thread.
+     */
+    public void start(Consumer<Diff> listener) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(() -> watch(listener), "CityWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private void watch(Consumer<Diff> listener) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean ours = key.pollEvents().stream()
+                        .anyMatch(event -> file.getFileName().equals(event.context()));
+                key.reset();
+                if (!ours) {
+                    continue;
+                }
+
+                // Swallow the rest of this save before reading
+                WatchKey more;
+                while ((more = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    more.pollEvents();
+                    more.reset();
+                }
+
+                try {
+                    Diff diff = read();
+                    if (!diff.isEmpty()) {
+                        SwingUtilities.invokeLater(() -> listener.accept(diff));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Probably caught mid-write; the next save will be picked up
+                    System.out.println("Could not reload " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Reads the file and diffs it against the previous read.
+     */
+    private Diff read() throws IOException {
+        Map<String, String> next = new HashMap<>();
+        Diff diff = new Diff();
+        List<WorldMapApplication.City> parsed = new ArrayList<>();
+        List<Boolean> isNew = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String name = line.substring(0, nthCommaFromEnd(line, 3)).trim();
+            next.put(name, line);
+            String previous = lines.get(name);
+            if (!line.equals(previous)) {
+                parsed.add(parse(name, line));
+                isNew.add(previous == null);
+            }
+        }
+        for (String name : lines.keySet()) {
+            if (!next.containsKey(name)) {
+                diff.removed.add(name);
+            }
+        }
+
+        // Project everything that changed in one pass
+        WorldMapApplication.projectAll(parsed, projection);
+        for (int i = 0; i < parsed.size(); i++) {
+            (isNew.get(i) ? diff.added : diff.changed).add(parsed.get(i));
+        }
+        lines = next;
+        return diff;
+    }
+
+    private static WorldMapApplication.City parse(String name, String line) {
+        int urlStart = nthCommaFromEnd(line, 1);
+        int lonStart = nthCommaFromEnd(line, 2);
+        int latStart = nthCommaFromEnd(line, 3);
+        double lat = Double.parseDouble(line.substring(latStart + 1, lonStart).trim());
+        double lon = Double.parseDouble(line.substring(lonStart + 1, urlStart).trim());
+        return new WorldMapApplication.City(name, lat, lon, line.substring(urlStart + 1).trim());
+    }
+
+    private static int nthCommaFromEnd(String line, int n) {
+        int index = line.length();
+        for (int i = 0; i < n; i++) {
+            index = line.lastIndexOf(',', index - 1);
+            if (index < 0) {
+                throw new IllegalArgumentException("Expected name,latitude,longitude,url: " + line);
+            }
+        }
+        return index;
+    }
+}
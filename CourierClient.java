@@ -0,0 +1,286 @@
+package mygame;
+
+import com.jme3.input.controls.ActionListener;
+import com.jme3.math.Vector3f;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client side of the multiplayer protocol, talking to a {@link CourierServer}.
+ *
+ * Register it as an input listener to forward the movement actions. Each
+ * call to {@link #update(float)} sends the current input state at the
+ * input rate and decodes any snapshots that have arrived. Everything is
+ * non-blocking and single-threaded, so hundreds of clients can share one
+ * thread in a load test.
+ *
+ * A client that predicts its own courier locally passes the predicted
+ * position in before each update. It is stored with every input sent, and
+ * once a snapshot says which input the server had applied,
+ * {@link #getPredictionError} gives how far the prediction was off.
+ */
+public class CourierClient implements ActionListener {
+
+    private static final int HISTORY = 64;
+    private static final float CONNECT_RETRY = 0.5f;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+    private final float inputInterval;
+
+    private int buttons = 0;
+    private int yaw = 0;
+    private int inputSeq = 0;
+    private float sinceSend = Float.MAX_VALUE;
+
+    private int courierId = 0;
+    private long citySeed;
+    private int gridSize;
+    private String rejectReason;
+
+    // Decoded snapshots by sequence number, for delta baselines
+    private final Snapshot[] history = new Snapshot[HISTORY];
+    private Snapshot latest;
+    private int appliedInputSeq = 0;
+    private final int[] you = new int[2];
+
+    // Predicted own position when each input was sent, by input sequence number
+    private final int[] predictedSeq = new int[HISTORY];
+    private final float[] predictedX = new float[HISTORY];
+    private final float[] predictedY = new float[HISTORY];
+    private final float[] predictedZ = new float[HISTORY];
+    private final Vector3f predicted = new Vector3f();
+
+    // Statistics for load testing
+    private long snapshotsReceived = 0;
+    private long bytesReceived = 0;
+    private long decodeFailures = 0;
+
+    /**
+     * @param inputRate input packets per second
+     */
+    public CourierClient(int port, int inputRate) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress("127.0.0.1", port));
+        inputInterval = 1f / inputRate;
+    }
+
+    @Override
+    public void onAction(String name, boolean isPressed, float tpf) {
+        int button = NetProtocol.button(name);
+        buttons = isPressed ? buttons | button : buttons & ~button;
+    }
+
+    public void setButtons(int buttons) {
+        this.buttons = buttons;
+    }
+
+    /**
+     * Sets the heading to send, in InputRecorder's 16-bit angle steps.
+     */
+    public void setYaw(int yaw) {
+        this.yaw = yaw;
+    }
+
+    /**
+     * Sets where local prediction has this client's courier now.
+     */
+    public void setPredictedPosition(Vector3f position) {
+        predicted.set(position);
+    }
+
+    /**
+     * Sends input if it is due and processes everything received.
+     */
+    public void update(float tpf) {
+        sinceSend += tpf;
+        try {
+            if (courierId == 0 && rejectReason == null) {
+                if (sinceSend >= CONNECT_RETRY) {
+                    sinceSend = 0;
+                    sendConnect();
+                }
+            } else if (courierId != 0 && sinceSend >= inputInterval) {
+                sinceSend = 0;
+                sendInput();
+            }
+            receive();
+        } catch (IOException e) {
+            // Typically the server is not up yet; keep trying
+        }
+    }
+
+    private void sendConnect() throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(NetProtocol.CONNECT);
+        NetProtocol.putVarInt(sendBuffer, NetProtocol.VERSION);
+        sendBuffer.flip();
+        channel.write(sendBuffer);
+    }
+
+    private void sendInput() throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(NetProtocol.INPUT);
+        NetProtocol.putVarInt(sendBuffer, ++inputSeq);
+        int slot = inputSeq % HISTORY;
+        predictedSeq[slot] = inputSeq;
+        predictedX[slot] = predicted.x;
+        predictedY[slot] = predicted.y;
+        predictedZ[slot] = predicted.z;
+        NetProtocol.putVarInt(sendBuffer, latest != null ? latest.seq : 0);
+        sendBuffer.put((byte) buttons);
+        NetProtocol.putVarInt(sendBuffer, yaw & (InputRecorder.ANGLE_STEPS - 1));
+        sendBuffer.flip();
+        channel.write(sendBuffer);
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            bytesReceived += receiveBuffer.remaining();
+            try {
+                handlePacket(receiveBuffer);
+            } catch (RuntimeException e) {
+                decodeFailures++;
+            }
+        }
+    }
+
+    private void handlePacket(ByteBuffer packet) {
+        byte type = packet.get();
+        if (type == NetProtocol.WELCOME) {
+            courierId = NetProtocol.getVarInt(packet);
+            citySeed = packet.getLong();
+            gridSize = NetProtocol.getVarInt(packet);
+        } else if (type == NetProtocol.REJECT) {
+            byte[] text = new byte[NetProtocol.getVarInt(packet)];
+            packet.get(text);
+            rejectReason = new String(text, StandardCharsets.UTF_8);
+        } else if (type == NetProtocol.SNAPSHOT) {
+            int seq = NetProtocol.getVarInt(packet.duplicate());
+            // Snapshots can arrive out of order; an older one is of no use
+            if (latest != null && seq <= latest.seq) {
+                return;
+            }
+            int baseSeq = Snapshot.peekBaseSeq(packet);
+            Snapshot base = null;
+            if (baseSeq != 0) {
+                base = history[baseSeq % HISTORY];
+                if (base == null || base.seq != baseSeq) {
+                    // Baseline is gone; the server falls back to a full snapshot
+                    // once it sees our acks are stale
+                    decodeFailures++;
+                    return;
+                }
+            }
+            Snapshot snapshot = Snapshot.read(packet, base, you);
+            history[snapshot.seq % HISTORY] = snapshot;
+            latest = snapshot;
+            appliedInputSeq = you[1];
+            snapshotsReceived++;
+        }
+    }
+
+    public boolean isConnected() {
+        return courierId != 0;
+    }
+
+    public int getCourierId() {
+        return courierId;
+    }
+
+    public long getCitySeed() {
+        return citySeed;
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * Why the server refused the connection, or null.
+     */
+    public String getRejectReason() {
+        return rejectReason;
+    }
+
+    /**
+     * The most recent snapshot, or null before the first one arrives.
+     */
+    public Snapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Stores in error the latest snapshot's position of this client's courier
+     * minus the position predicted when the input the server had applied was
+     * sent.
+     *
+     * @return false if there is nothing to compare yet
+     */
+    public boolean getPredictionError(Vector3f error) {
+        int own = latest != null ? latest.indexOf(courierId) : -1;
+        int slot = appliedInputSeq % HISTORY;
+        if (own < 0 || appliedInputSeq == 0 || predictedSeq[slot] != appliedInputSeq) {
+            return false;
+        }
+        error.set(NetProtocol.position(latest.x[own]) - predictedX[slot],
+                NetProtocol.position(latest.y[own]) - predictedY[slot],
+                NetProtocol.position(latest.z[own]) - predictedZ[slot]);
+        return true;
+    }
+
+    /**
+     * Moves the predictions of the last input the server applied and of those
+     * still in flight, after
+     * the local courier was moved by offset to correct it.
+     */
+    public void shiftPredictions(Vector3f offset) {
+        for (int seq = Math.max(appliedInputSeq, inputSeq - HISTORY + 1); seq <= inputSeq; seq++) {
+            int slot = seq % HISTORY;
+            if (predictedSeq[slot] == seq) {
+                predictedX[slot] += offset.x;
+                predictedY[slot] += offset.y;
+                predictedZ[slot] += offset.z;
+            }
+        }
+    }
+
+    public long getSnapshotsReceived() {
+        return snapshotsReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getDecodeFailures() {
+        return decodeFailures;
+    }
+
+    public void close() {
+        try {
+            if (courierId != 0) {
+                sendBuffer.clear();
+                sendBuffer.put(NetProtocol.DISCONNECT);
+                sendBuffer.flip();
+                channel.write(sendBuffer);
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package mygame;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.bullet.BulletAppState;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.bullet.objects.PhysicsCharacter;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.system.AppSettings;
+import com.jme3.system.JmeContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Authoritative multiplayer server: several couriers racing on one city.
+ *
+ * Runs headless. Physics and the delivery rules advance in physics tick
+ * callbacks, so the simulation moves in fixed steps regardless of frame
+ * timing. Clients only send their input state over UDP on the loopback
+ * interface; every few ticks each client gets a snapshot of all couriers,
+ * delta-compressed against the last snapshot it acknowledged, along with
+ * the last input of its own that the server applied.
+ *
+ * Bodies cannot be added to or removed from the space while it steps, which
+ * with parallel threading is whenever the tick callbacks run. Joining and
+ * leaving couriers are therefore queued and their characters added or
+ * removed on the update thread, which only runs between steps.
+ */
+public class CourierServer extends SimpleApplication implements PhysicsTickListener {
+
+    // Must match PizzaParkour so clients see the same city
+    static final long DEFAULT_SEED = 1234;
+    static final int DEFAULT_GRID_SIZE = 5;
+    static final float SPACING = 25f;
+    static final int DEFAULT_PORT = 7777;
+
+    // Delivery rules
+    private static final float PICKUP_RADIUS = 4f;
+    private static final float DELIVERY_RADIUS = 3f;
+    private static final float DELIVERY_TIME_LIMIT = 60f;
+
+    // Snapshots kept for delta baselines; older acks get a full snapshot
+    private static final int HISTORY = 64;
+    private static final float CLIENT_TIMEOUT = 5f;
+
+    // A full snapshot of this many couriers still fits in one datagram
+    private static final int MAX_COURIERS = 1024;
+
+    private int port = DEFAULT_PORT;
+    private long seed = DEFAULT_SEED;
+    private int gridSize = DEFAULT_GRID_SIZE;
+    private int tickRate = 60;
+    private int snapshotRate = 20;
+    private int maxClients = 256;
+    private final PhysicsConfig physicsConfig = new PhysicsConfig();
+
+    private DatagramChannel channel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private BulletAppState bulletAppState;
+    private CityLayout city;
+    private int shopBuilding;
+    private final Vector3f shopRoof = new Vector3f();
+    private Random random;
+
+    // Couriers in id order, which is also join order
+    private final List<Courier> couriers = new ArrayList<>();
+    private final Map<SocketAddress, Courier> byAddress = new HashMap<>();
+    private int nextId = 1;
+
+    // Filled by the tick callbacks and drained by the update thread; the two never overlap
+    private final List<Courier> joining = new ArrayList<>();
+    private final List<PhysicsCharacter> leaving = new ArrayList<>();
+
+    private long tick = 0;
+    private int snapshotSeq = 0;
+    private final Snapshot[] history = new Snapshot[HISTORY];
+
+    // Server health, printed with the tick profile
+    private final FrameProfiler profiler = new FrameProfiler(5f, Paths.get("profiles", "server-profile.jsonl"));
+    private final FrameProfiler.Histogram tickTime = profiler.add("serverTick");
+    private final FrameProfiler.Histogram snapshotTime = profiler.add("snapshots");
+    private long bytesSent = 0;
+    private long snapshotsSent = 0;
+    private long fullSnapshotsSent = 0;
+
+    /**
+     * One connected client and the courier it controls.
+     */
+    private static class Courier {
+        final int id;
+        final SocketAddress address;
+        final PhysicsCharacter character;
+        final Vector3f walkDirection = new Vector3f();
+
+        int buttons;
+        int yaw;
+        int lastInputSeq = -1;
+        int ackedSnapshot;
+        long lastHeard;
+
+        boolean carrying;
+        int target = -1;
+        float deliveryTime;
+        int score;
+        int deliveries;
+
+        Courier(int id, SocketAddress address, PhysicsCharacter character) {
+            this.id = id;
+            this.address = address;
+            this.character = character;
+        }
+    }
+
+    public static void main(String[] args) {
+        CourierServer server = new CourierServer();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--port")) {
+                server.port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--seed")) {
+                server.seed = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--grid-size")) {
+                server.gridSize = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--tick-rate")) {
+                server.tickRate = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--snapshot-rate")) {
+                server.snapshotRate = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--max-clients")) {
+                server.maxClients = Math.min(Integer.parseInt(args[i + 1]), MAX_COURIERS);
+            } else {
+                server.physicsConfig.parseOption(args[i], args[i + 1]);
+            }
+        }
+
+        // The render loop only drives physics, so there is no need to spin faster than the tick
+        AppSettings settings = new AppSettings(true);
+        settings.setFrameRate(server.tickRate);
+        server.setSettings(settings);
+        server.setShowSettings(false);
+        server.start(JmeContext.Type.Headless);
+    }
+
+    @Override
+    public void simpleInitApp() {
+        // One physics step per server tick
+        physicsConfig.setAccuracy(1f / tickRate);
+        city = CityLayout.loadOrGenerate(Paths.get("cache"), seed, gridSize, SPACING);
+        float halfExtent = CityBuilder.worldHalfExtent(gridSize, SPACING);
+        bulletAppState = physicsConfig.createAppState(halfExtent);
+        stateManager.attach(bulletAppState);
+        PhysicsSpace space = bulletAppState.getPhysicsSpace();
+        physicsConfig.applyTo(space);
+        space.setGravity(new Vector3f(0, -PlayerPhysics.GRAVITY, 0));
+        space.addTickListener(this);
+        createCity(space, halfExtent);
+        random = new Random(seed + 2);
+
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress("127.0.0.1", port));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot bind UDP port " + port, e);
+        }
+        System.out.println("Courier server on 127.0.0.1:" + port + ", " + city.count + " buildings, "
+                + tickRate + " ticks/s, " + snapshotRate + " snapshots/s");
+    }
+
+    /**
+     * Adds the ground and the building and roof boxes, with the game's
+     * {@link CityBuilder} helpers so both collide with the same city.
+     */
+    private void createCity(PhysicsSpace space, float halfExtent) {
+        CityBuilder.addGroundBody(space, halfExtent, null);
+        for (int b = 0; b < city.count; b++) {
+            CityBuilder.addBuildingBodies(space, city.buildingX(b), city.buildingZ(b),
+                    city.width[b], city.height[b], city.depth[b], null, null);
+        }
+
+        // The shop is the centre building, or the one nearest the centre if that cell is empty
+        shopBuilding = city.shopBuilding;
+        if (shopBuilding < 0) {
+            float best = Float.MAX_VALUE;
+            for (int b = 0; b < city.count; b++) {
+                float distSq = city.buildingX(b) * city.buildingX(b) + city.buildingZ(b) * city.buildingZ(b);
+                if (distSq < best) {
+                    best = distSq;
+                    shopBuilding = b;
+                }
+            }
+        }
+        if (shopBuilding >= 0) {
+            shopRoof.set(city.buildingX(shopBuilding), city.height[shopBuilding] + 0.5f, city.buildingZ(shopBuilding));
+        }
+    }
+
+    @Override
+    public void simpleUpdate(float tpf) {
+        PhysicsSpace space = bulletAppState.getPhysicsSpace();
+        for (PhysicsCharacter character : leaving) {
+            space.remove(character);
+        }
+        leaving.clear();
+
+        // Ids only grow, so appending keeps couriers in id order
+        for (Courier courier : joining) {
+            space.add(courier.character);
+            couriers.add(courier);
+        }
+        joining.clear();
+    }
+
+    @Override
+    public void prePhysicsTick(PhysicsSpace space, float tpf) {
+        receivePackets();
+
+        // Apply the latest input of every courier, moving as the game's player does
+        for (Courier courier : couriers) {
+            float yaw = InputRecorder.angle(courier.yaw);
+            float sin = FastMath.sin(yaw);
+            float cos = FastMath.cos(yaw);
+            Vector3f walk = courier.walkDirection.set(0, 0, 0);
+            if ((courier.buttons & NetProtocol.BUTTON_LEFT) != 0) walk.addLocal(cos, 0, -sin);
+            if ((courier.buttons & NetProtocol.BUTTON_RIGHT) != 0) walk.addLocal(-cos, 0, sin);
+            if ((courier.buttons & NetProtocol.BUTTON_UP) != 0) walk.addLocal(sin, 0, cos);
+            if ((courier.buttons & NetProtocol.BUTTON_DOWN) != 0) walk.addLocal(-sin, 0, -cos);
+            if (walk.lengthSquared() > 0) {
+                walk.normalizeLocal();
+            }
+            courier.character.setWalkDirection(walk.multLocal(PlayerPhysics.SPEED));
+
+            if ((courier.buttons & NetProtocol.BUTTON_JUMP) != 0 && courier.character.onGround()) {
+                courier.character.jump();
+            }
+        }
+    }
+
+    @Override
+    public void physicsTick(PhysicsSpace space, float tpf) {
+        long start = System.nanoTime();
+        tick++;
+
+        Vector3f position = new Vector3f();
+        for (int i = couriers.size() - 1; i >= 0; i--) {
+            Courier courier = couriers.get(i);
+            if ((tick - courier.lastHeard) > CLIENT_TIMEOUT * tickRate) {
+                System.out.println("Courier " + courier.id + " timed out");
+                removeCourier(courier);
+                continue;
+            }
+            courier.character.getPhysicsLocation(position);
+            updateDelivery(courier, position, tpf);
+        }
+
+        if (tick % Math.max(1, tickRate / snapshotRate) == 0) {
+            long snapshotStart = System.nanoTime();
+            sendSnapshots();
+            snapshotTime.recordSince(snapshotStart);
+        }
+        tickTime.recordSince(start);
+
+        if (profiler.update(tpf)) {
+            System.out.println(profiler.format());
+            System.out.println(String.format("%d couriers, %d snapshots (%d full), %.1f bytes/snapshot, %.1f kB/s",
+                    couriers.size(), snapshotsSent, fullSnapshotsSent,
+                    snapshotsSent == 0 ? 0f : bytesSent / (float) snapshotsSent, bytesSent / 5f / 1024f));
+            bytesSent = 0;
+            snapshotsSent = 0;
+            fullSnapshotsSent = 0;
+        }
+    }
+
+    /**
+     * Pick up at the shop roof, deliver to the assigned roof, as in the single player game.
+     */
+    private void updateDelivery(Courier courier, Vector3f position, float tpf) {
+        if (shopBuilding < 0) {
+            return;
+        }
+        if (!courier.carrying) {
+            if (nearRoof(position, shopRoof.x, shopRoof.y, shopRoof.z, PICKUP_RADIUS)) {
+                courier.carrying = true;
+                courier.deliveryTime = 0;
+                courier.target = pickDeliveryBuilding();
+            }
+            return;
+        }
+
+        courier.deliveryTime += tpf;
+        int target = courier.target;
+        if (nearRoof(position, city.buildingX(target), city.height[target] + 0.5f, city.buildingZ(target),
+                DELIVERY_RADIUS)) {
+            float timeLeft = DELIVERY_TIME_LIMIT - courier.deliveryTime;
+            courier.score += 100 + (int) Math.max(1, timeLeft);
+            courier.deliveries++;
+            courier.carrying = false;
+            courier.target = -1;
+        }
+    }
+
+    private static boolean nearRoof(Vector3f position, float x, float top, float z, float radius) {
+        float dx = position.x - x;
+        float dz = position.z - z;
+        float above = position.y - top;
+        return dx * dx + dz * dz < radius * radius && above > -0.5f && above < 3f;
+    }
+
+    private int pickDeliveryBuilding() {
+        if (city.count < 2) {
+            return shopBuilding;
+        }
+        int building = random.nextInt(city.count - 1);
+        return building >= shopBuilding ? building + 1 : building;
+    }
+
+    private void receivePackets() {
+        try {
+            SocketAddress from;
+            while (true) {
+                receiveBuffer.clear();
+                from = channel.receive(receiveBuffer);
+                if (from == null) {
+                    break;
+                }
+                receiveBuffer.flip();
+                try {
+                    handlePacket(from, receiveBuffer);
+                } catch (RuntimeException e) {
+                    // Malformed or truncated datagram; drop it
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handlePacket(SocketAddress from, ByteBuffer packet) throws IOException {
+        byte type = packet.get();
+        Courier courier = byAddress.get(from);
+
+        if (type == NetProtocol.CONNECT) {
+            int version = NetProtocol.getVarInt(packet);
+            if (version != NetProtocol.VERSION) {
+                sendReject(from, "Protocol version " + version + " not supported");
+            } else if (courier == null && couriers.size() + joining.size() >= maxClients) {
+                sendReject(from, "Server full");
+            } else {
+                if (courier == null) {
+                    courier = addCourier(from);
+                }
+                // Sent again for every CONNECT, in case the first WELCOME was lost
+                sendWelcome(courier);
+            }
+        } else if (type == NetProtocol.INPUT && courier != null) {
+            int inputSeq = NetProtocol.getVarInt(packet);
+            int acked = NetProtocol.getVarInt(packet);
+            int buttons = packet.get();
+            int yaw = NetProtocol.getVarInt(packet) & (InputRecorder.ANGLE_STEPS - 1);
+            courier.lastHeard = tick;
+            // Late packets carry stale input
+            if (inputSeq > courier.lastInputSeq) {
+                courier.lastInputSeq = inputSeq;
+                courier.buttons = buttons;
+                courier.yaw = yaw;
+            }
+            if (acked > courier.ackedSnapshot && acked <= snapshotSeq) {
+                courier.ackedSnapshot = acked;
+            }
+        } else if (type == NetProtocol.DISCONNECT && courier != null) {
+            System.out.println("Courier " + courier.id + " left");
+            removeCourier(courier);
+        }
+    }
+
+    private Courier addCourier(SocketAddress address) {
+        PhysicsCharacter character = new PhysicsCharacter(PlayerPhysics.createShape(), PlayerPhysics.STEP_HEIGHT);
+        PlayerPhysics.configure(character);
+
+        // Spread arrivals around the shop roof so couriers don't spawn inside each other
+        int id = nextId++;
+        float angle = id * 2.4f;
+        float radius = id % 4 * 0.8f;
+        character.setPhysicsLocation(new Vector3f(shopRoof.x + FastMath.cos(angle) * radius,
+                shopRoof.y + 3, shopRoof.z + FastMath.sin(angle) * radius));
+
+        // Simulated and sent in snapshots from the first tick after the update thread adds it
+        Courier courier = new Courier(id, address, character);
+        courier.lastHeard = tick;
+        joining.add(courier);
+        byAddress.put(address, courier);
+        System.out.println("Courier " + id + " joined from " + address);
+        return courier;
+    }
+
+    private void removeCourier(Courier courier) {
+        if (!joining.remove(courier)) {
+            couriers.remove(courier);
+            leaving.add(courier.character);
+        }
+        byAddress.remove(courier.address);
+    }
+
+    private void sendWelcome(Courier courier) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(NetProtocol.WELCOME);
+        NetProtocol.putVarInt(sendBuffer, courier.id);
+        sendBuffer.putLong(seed);
+        NetProtocol.putVarInt(sendBuffer, gridSize);
+        NetProtocol.putVarInt(sendBuffer, tickRate);
+        sendBuffer.flip();
+        channel.send(sendBuffer, courier.address);
+    }
+
+    private void sendReject(SocketAddress to, String reason) throws IOException {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        sendBuffer.clear();
+        sendBuffer.put(NetProtocol.REJECT);
+        NetProtocol.putVarInt(sendBuffer, text.length);
+        sendBuffer.put(text);
+        sendBuffer.flip();
+        channel.send(sendBuffer, to);
+    }
+
+    /**
+     * Captures the world once and sends it to every client against that
+     * client's own acknowledged baseline.
+     */
+    private void sendSnapshots() {
+        Snapshot snapshot = new Snapshot(++snapshotSeq, couriers.size());
+        Vector3f position = new Vector3f();
+        for (Courier courier : couriers) {
+            courier.character.getPhysicsLocation(position);
+            snapshot.add(courier.id,
+                    NetProtocol.quantizePosition(position.x),
+                    NetProtocol.quantizePosition(position.y),
+                    NetProtocol.quantizePosition(position.z),
+                    courier.yaw, courier.score,
+                    (courier.carrying ? 1 : 0) | (courier.target + 1) << 1);
+        }
+        history[snapshotSeq % HISTORY] = snapshot;
+
+        for (Courier courier : couriers) {
+            Snapshot base = history[courier.ackedSnapshot % HISTORY];
+            if (base == null || base.seq != courier.ackedSnapshot || courier.ackedSnapshot == 0) {
+                base = null;
+            }
+            sendBuffer.clear();
+            sendBuffer.put(NetProtocol.SNAPSHOT);
+            snapshot.write(sendBuffer, base, courier.id, Math.max(0, courier.lastInputSeq));
+            sendBuffer.flip();
+            int bytes = sendBuffer.remaining();
+            try {
+                if (channel.send(sendBuffer, courier.address) > 0) {
+                    bytesSent += bytes;
+                    snapshotsSent++;
+                    if (base == null) {
+                        fullSnapshotsSent++;
+                    }
+                }
+            } catch (IOException e) {
+                // The client's socket is gone; it will time out
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        profiler.shutdown();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        super.destroy();
+    }
+}
@@ -0,0 +1,393 @@
+package mygame;
+
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial.CullHint;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.instancing.InstancedGeometry;
+import com.jme3.util.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Ambient pedestrians and vehicles moving along the streets between buildings.
+ *
+ * Agents live in parallel primitive arrays rather than objects: lane, distance
+ * along the lane, signed speed and a random state each. A step runs on a
+ * fork-join pool in chunks, while the render thread draws the previous step,
+ * and writes each agent's instance transform straight into a back buffer.
+ * The render thread only swaps buffers when a step has finished, so it never
+ * waits on the simulation. If a step takes longer than its budget, fewer
+ * agents are simulated and drawn until it fits again.
+ *
+ * Streets run along both axes between the grid rows. Each street has two
+ * vehicle lanes, one per direction, and a sidewalk on either side.
+ */
+public class CrowdSimulation {
+
+    // Lane sides: vehicle lanes in each direction, then the two sidewalks
+    private static final int SIDES = 4;
+    private static final float[] SIDE_OFFSET = { 1.75f, -1.75f, 5f, -5f };
+
+    // Chance of turning at each crossing
+    private static final float TURN_CHANCE = 0.3f;
+
+    private static final int CHUNK = 2048;
+    private static final int INSTANCE_SIZE = 16;
+
+    private final float lineStart;
+    private final float spacing;
+    private final float laneEnd;
+
+    // Agents; vehicles first, then pedestrians
+    private final int count;
+    private final int vehicles;
+    private final int[] lane;       // ((line * 2 + axis) * SIDES + side)
+    private final float[] along;    // position along the lane's axis
+    private final float[] speed;    // signed, units per second
+    private final int[] rng;
+
+    // Per-kind instance data, double buffered
+    private final CrowdGeometry vehicleGeometry;
+    private final CrowdGeometry pedestrianGeometry;
+
+    private final ForkJoinPool pool;
+    private ForkJoinTask<?> pending;
+    private float pendingTime = 0;
+
+    // Cost bound: the share of agents simulated adapts to keep a step within budget
+    private final float budgetNanos;
+    private int active;
+    private volatile long lastStepNanos;
+    private FrameProfiler.Histogram histogram;
+
+    /**
+     * @param lineStart coordinate of the first street line on both axes
+     * @param lines number of street lines along each axis
+     * @param count total agents, of which about a third are vehicles
+     * @param budgetMillis target time for one simulation step
+     */
+    public CrowdSimulation(float lineStart, float spacing, int lines, int count, long seed,
+            float budgetMillis, Mesh vehicleMesh, Material vehicleMat, Mesh pedestrianMesh, Material pedestrianMat) {
+        this.lineStart = lineStart;
+        this.spacing = spacing;
+        this.laneEnd = lineStart + (lines - 1) * spacing;
+        this.count = count;
+        this.vehicles = count / 3;
+        this.budgetNanos = budgetMillis * 1e6f;
+        this.active = count;
+
+        lane = new int[count];
+        along = new float[count];
+        speed = new float[count];
+        rng = new int[count];
+
+        // Scatter agents over every lane at random positions
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            boolean vehicle = i < vehicles;
+            int line = random.nextInt(lines);
+            int axis = random.nextInt(2);
+            int side = (vehicle ? 0 : 2) + random.nextInt(2);
+            lane[i] = (line * 2 + axis) * SIDES + side;
+            along[i] = lineStart + random.nextFloat() * (laneEnd - lineStart);
+            float baseSpeed = vehicle ? 6f + random.nextFloat() * 8f : 1f + random.nextFloat() * 1f;
+            // Vehicles drive in their lane's direction, pedestrians walk either way
+            boolean forward = vehicle ? side == 0 : random.nextBoolean();
+            speed[i] = forward ? baseSpeed : -baseSpeed;
+            rng[i] = random.nextInt() | 1;
+        }
+
+        vehicleGeometry = new CrowdGeometry("Vehicles", vehicleMesh, vehicleMat, vehicles,
+                2f, 0.8f, 1f);
+        pedestrianGeometry = new CrowdGeometry("Pedestrians", pedestrianMesh, pedestrianMat, count - vehicles,
+                0.4f, 1.7f, 0.4f);
+
+        pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public void attachTo(Node parent) {
+        parent.attachChild(vehicleGeometry);
+        parent.attachChild(pedestrianGeometry);
+    }
+
+    /**
+     * Also records every step into a profiler histogram.
+     */
+    public void setHistogram(FrameProfiler.Histogram histogram) {
+        this.histogram = histogram;
+    }
+
+    public int getActiveCount() {
+        return active;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getLastStepMillis() {
+        return lastStepNanos / 1e6f;
+    }
+
+    /**
+     * Called once per frame on the render thread. Never blocks: if the
+     * previous step is still running, the frame keeps the last positions.
+     */
+    public void update(float tpf) {
+        pendingTime += tpf;
+        if (pending != null) {
+            if (!pending.isDone()) {
+                return;
+            }
+            pending.join(); // Rethrows anything the step threw
+            pending = null;
+            vehicleGeometry.swap();
+            pedestrianGeometry.swap();
+            adaptActiveCount();
+        }
+
+        // Large gaps (loading, a stall) would teleport agents, so cap the step
+        float dt = Math.min(pendingTime, 0.1f);
+        pendingTime = 0;
+        int agents = active;
+        vehicleGeometry.setPendingCount(activeOfKind(agents, true));
+        pedestrianGeometry.setPendingCount(activeOfKind(agents, false));
+        pending = pool.submit(() -> {
+            long start = System.nanoTime();
+            new StepTask(0, count, dt).invoke();
+            lastStepNanos = System.nanoTime() - start;
+            if (histogram != null) {
+                histogram.record(lastStepNanos);
+            }
+        });
+    }
+
+    private void adaptActiveCount() {
+        if (lastStepNanos > budgetNanos) {
+            active = Math.max(Math.min(CHUNK, count), (int) (active * 0.9f));
+        } else if (lastStepNanos < budgetNanos * 0.6f) {
+            active = Math.min(count, active + Math.max(64, active / 20));
+        }
+    }
+
+    /**
+     * How many agents of a kind are simulated when the first part of each
+     * kind's range is active, keeping the vehicle/pedestrian ratio.
+     */
+    private int activeOfKind(int agents, boolean vehicle) {
+        int activeVehicles = (int) ((long) agents * vehicles / Math.max(1, count));
+        return vehicle ? activeVehicles : Math.min(count - vehicles, agents - activeVehicles);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Steps a range of agents and writes their transforms.
+     */
+    private class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final float dt;
+
+        StepTask(int from, int to, float dt) {
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new StepTask(from, mid, dt), new StepTask(mid, to, dt));
+                return;
+            }
+            int activeVehicles = vehicleGeometry.pendingCount;
+            int activePedestrians = pedestrianGeometry.pendingCount;
+            for (int i = from; i < to; i++) {
+                boolean vehicle = i < vehicles;
+                int index = vehicle ? i : i - vehicles;
+                if (index >= (vehicle ? activeVehicles : activePedestrians)) {
+                    continue;
+                }
+                step(i, dt);
+                writeTransform(i, vehicle ? vehicleGeometry : pedestrianGeometry, index);
+            }
+        }
+    }
+
+    private void step(int i, float dt) {
+        float before = along[i];
+        float after = before + speed[i] * dt;
+
+        // Turn around at the edge of the city, changing to the opposite vehicle lane
+        if (after < lineStart || after > laneEnd) {
+            after = FastMath.clamp(after, lineStart, laneEnd);
+            speed[i] = -speed[i];
+            if (i < vehicles) {
+                lane[i] ^= 1;
+            }
+            along[i] = after;
+            return;
+        }
+
+        // Maybe turn at a crossing street line
+        int cellBefore = (int) Math.floor((before - lineStart) / spacing);
+        int cellAfter = (int) Math.floor((after - lineStart) / spacing);
+        if (cellBefore != cellAfter && nextRandom(i) < TURN_CHANCE) {
+            int crossing = Math.max(cellBefore, cellAfter);
+            int currentLane = lane[i];
+            int side = currentLane % SIDES;
+            int axis = (currentLane / SIDES) & 1;
+            int line = currentLane / SIDES / 2;
+
+            // The new lane runs along the other axis, starting where we are across it
+            float across = lineStart + line * spacing + SIDE_OFFSET[side];
+            boolean forward = nextRandom(i) < 0.5f;
+            int newSide = i < vehicles ? (forward ? 0 : 1) : side;
+            lane[i] = (crossing * 2 + (axis ^ 1)) * SIDES + newSide;
+            along[i] = across;
+            speed[i] = forward ? Math.abs(speed[i]) : -Math.abs(speed[i]);
+            return;
+        }
+        along[i] = after;
+    }
+
+    /**
+     * Xorshift per agent, so chunks stay independent of scheduling.
+     */
+    private float nextRandom(int i) {
+        int x = rng[i];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        rng[i] = x;
+        return (x >>> 8) / (float) (1 << 24);
+    }
+
+    private void writeTransform(int i, CrowdGeometry geometry, int index) {
+        int currentLane = lane[i];
+        int side = currentLane % SIDES;
+        int axis = (currentLane / SIDES) & 1;
+        float across = lineStart + (currentLane / SIDES / 2) * spacing + SIDE_OFFSET[side];
+        float x = axis == 0 ? along[i] : across;
+        float z = axis == 0 ? across : along[i];
+        int heading = axis * 2 + (speed[i] < 0 ? 1 : 0);
+        geometry.write(index, heading, x, z);
+    }
+
+    /**
+     * One kind of agent, drawn as a single instanced mesh whose per-instance
+     * transforms come straight from the simulation rather than from child
+     * geometries.
+     */
+    private static class CrowdGeometry extends InstancedGeometry {
+        // Rotation and scale for each heading (+x, -x, +z, -z), laid out as
+        // jME's instance data: three matrix columns, each followed by a
+        // component of the rotation quaternion, then translation and w
+        private final float[][] headings = new float[4][12];
+        private final float[] quaternionW = new float[4];
+        private final float halfHeight;
+
+        private FloatBuffer front;
+        private FloatBuffer back;
+        private final VertexBuffer instanceData;
+        private volatile int pendingCount;
+        private int drawnCount = 0;
+
+        CrowdGeometry(String name, Mesh mesh, Material material, int capacity,
+                float length, float height, float width) {
+            super(name);
+            setMesh(mesh);
+            setMaterial(material);
+            // Agents cover the whole city, so culling the batch would never help
+            setCullHint(CullHint.Never);
+            halfHeight = height / 2;
+
+            // The model's z axis is the agent's length, turned about y to face its heading
+            float[] yaws = { FastMath.HALF_PI, -FastMath.HALF_PI, 0, FastMath.PI };
+            for (int h = 0; h < 4; h++) {
+                float cos = FastMath.cos(yaws[h]);
+                float sin = FastMath.sin(yaws[h]);
+                headings[h] = new float[] {
+                    cos * width, 0, -sin * width, 0,
+                    0, height, 0, FastMath.sin(yaws[h] / 2),
+                    sin * length, 0, cos * length, 0,
+                };
+                quaternionW[h] = FastMath.cos(yaws[h] / 2);
+            }
+
+            front = BufferUtils.createFloatBuffer(Math.max(1, capacity) * INSTANCE_SIZE);
+            back = BufferUtils.createFloatBuffer(Math.max(1, capacity) * INSTANCE_SIZE);
+            instanceData = new VertexBuffer(VertexBuffer.Type.InstanceData);
+            instanceData.setInstanced(true);
+            instanceData.setupData(VertexBuffer.Usage.Stream, INSTANCE_SIZE, VertexBuffer.Format.Float, front);
+        }
+
+        void setPendingCount(int count) {
+            pendingCount = count;
+        }
+
+        /**
+         * Writes one instance into the back buffer. Called from pool threads;
+         * each index is written by exactly one task.
+         */
+        void write(int index, int heading, float x, float z) {
+            float[] m = headings[heading];
+            int base = index * INSTANCE_SIZE;
+            for (int k = 0; k < 12; k++) {
+                back.put(base + k, m[k]);
+            }
+            back.put(base + 12, x);
+            back.put(base + 13, halfHeight);
+            back.put(base + 14, z);
+            back.put(base + 15, quaternionW[heading]);
+        }
+
+        /**
+         * Shows the finished back buffer and hands the old front to the next step.
+         */
+        void swap() {
+            FloatBuffer shown = back;
+            back = front;
+            front = shown;
+            drawnCount = pendingCount;
+            front.limit(Math.max(1, drawnCount) * INSTANCE_SIZE);
+            front.position(0);
+            instanceData.updateData(front);
+            back.clear();
+        }
+
+        @Override
+        public void updateInstances() {
+            // Instance data comes from the simulation, not from child geometries
+        }
+
+        @Override
+        public void updateInstances(Camera cam) {
+            // Called by the renderer each frame; nothing to gather or cull per instance
+        }
+
+        @Override
+        public int getNumVisibleInstances() {
+            return drawnCount;
+        }
+
+        @Override
+        public VertexBuffer[] getAllInstanceData() {
+            return new VertexBuffer[] { instanceData };
+        }
+    }
+}
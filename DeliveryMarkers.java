@@ -0,0 +1,179 @@
+package mygame;
+
+import com.jme3.material.Material;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.instancing.InstancedNode;
+import com.jme3.scene.shape.Box;
+
+import java.util.Arrays;
+
+/**
+ * The rush hour delivery platforms, one on every roof that takes orders.
+ *
+ * Platforms and arrows share two meshes and two materials and are drawn with
+ * hardware instancing, like the buildings. The arrow above a platform is only
+ * attached while its order is waiting. Markers have no physics bodies: the
+ * player's roof, found by building index, says which marker could be touched,
+ * and a box test against that one marker replaces the collision event.
+ */
+public class DeliveryMarkers {
+
+    // Platform half extents and the height of the contact box above its centre
+    private static final float PLATFORM_HALF_EXTENT = 2f;
+    private static final float PLATFORM_HALF_HEIGHT = 0.2f;
+    private static final float CONTACT_HALF_HEIGHT = 1f;
+
+    // Slack for the resting contact between the player and the roof
+    private static final float CONTACT_MARGIN = 0.1f;
+
+    private final Mesh platformMesh = new Box(PLATFORM_HALF_EXTENT, PLATFORM_HALF_HEIGHT, PLATFORM_HALF_EXTENT);
+    private final Mesh arrowMesh = new Box(0.5f, 1f, 0.5f);
+    private final Material platformMat;
+    private final Material arrowMat;
+    private final InstancedNode node = new InstancedNode("DeliveryMarkers");
+
+    // Per marker data, indexed by location index
+    private int count = 0;
+    private float[] posX = new float[64];
+    private float[] posY = new float[64];
+    private float[] posZ = new float[64];
+    private Geometry[] arrows = new Geometry[64];
+    private boolean[] active = new boolean[64];
+
+    // Location index of the marker on each building, or -1
+    private int[] buildingLocation = new int[0];
+
+    private boolean changed = false;
+
+    /**
+     * Materials must have UseInstancing enabled.
+     */
+    public DeliveryMarkers(Material platformMat, Material arrowMat) {
+        this.platformMat = platformMat;
+        this.arrowMat = arrowMat;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public Mesh getPlatformMesh() {
+        return platformMesh;
+    }
+
+    public Mesh getArrowMesh() {
+        return arrowMesh;
+    }
+
+    /**
+     * Adds a marker centred at (x, y, z) on top of a building. Markers are
+     * numbered in the order they are added.
+     *
+     * @return the marker's location index
+     */
+    public int addMarker(int building, float x, float y, float z) {
+        if (count == posX.length) {
+            grow();
+        }
+        if (building >= buildingLocation.length) {
+            int size = Math.max(building + 1, buildingLocation.length * 2);
+            int old = buildingLocation.length;
+            buildingLocation = Arrays.copyOf(buildingLocation, size);
+            Arrays.fill(buildingLocation, old, size, -1);
+        }
+        int location = count++;
+        posX[location] = x;
+        posY[location] = y;
+        posZ[location] = z;
+        buildingLocation[building] = location;
+
+        Geometry platform = new Geometry("DeliveryPlatform", platformMesh);
+        platform.setMaterial(platformMat);
+        platform.setLocalTranslation(x, y, z);
+        node.attachChild(platform);
+
+        Geometry arrow = new Geometry("DeliveryArrow", arrowMesh);
+        arrow.setMaterial(arrowMat);
+        arrow.setLocalTranslation(x, y + 1.5f, z);
+        arrows[location] = arrow;
+        changed = true;
+        return location;
+    }
+
+    public int getMarkerCount() {
+        return count;
+    }
+
+    public float getX(int location) {
+        return posX[location];
+    }
+
+    public float getZ(int location) {
+        return posZ[location];
+    }
+
+    /**
+     * Shows or hides the arrow that marks a waiting order.
+     */
+    public void setActive(int location, boolean active) {
+        if (this.active[location] == active) {
+            return;
+        }
+        this.active[location] = active;
+        if (active) {
+            node.attachChild(arrows[location]);
+        } else {
+            node.detachChild(arrows[location]);
+        }
+        changed = true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            setActive(i, false);
+        }
+    }
+
+    /**
+     * Rebuilds the instance data once for all of this frame's changes.
+     */
+    public void update() {
+        if (changed) {
+            node.instance();
+            changed = false;
+        }
+    }
+
+    /**
+     * Returns the marker a player standing over the given building is
+     * touching, or -1. The player is a box of the given half extents
+     * around its centre.
+     */
+    public int findTouched(int building, float x, float y, float z, float halfWidth, float halfHeight) {
+        if (building < 0 || building >= buildingLocation.length) {
+            return -1;
+        }
+        int location = buildingLocation[building];
+        if (location < 0) {
+            return -1;
+        }
+        float reach = PLATFORM_HALF_EXTENT + halfWidth + CONTACT_MARGIN;
+        float height = CONTACT_HALF_HEIGHT + halfHeight + CONTACT_MARGIN;
+        if (Math.abs(x - posX[location]) > reach || Math.abs(z - posZ[location]) > reach
+                || Math.abs(y - posY[location]) > height) {
+            return -1;
+        }
+        return location;
+    }
+
+    private void grow() {
+        int size = posX.length * 2;
+        posX = Arrays.copyOf(posX, size);
+        posY = Arrays.copyOf(posY, size);
+        posZ = Arrays.copyOf(posZ, size);
+        arrows = Arrays.copyOf(arrows, size);
+        active = Arrays.copyOf(active, size);
+    }
+}
@@ -0,0 +1,197 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * Density heatmap of point positions, for when there are too many cities to
+ * draw one marker each.
+ *
+ * Points are binned into a coarse grid in parallel, blurred with a separable
+ * Gaussian and coloured through a lookup table straight into the int[] that
+ * backs the image. The result is cached until the dataset or the map scale
+ * changes, so repaints just draw the cached image.
+ */
+public class DensityHeatmap {
+
+    // Screen pixels per grid cell; the image is scaled up smoothly when drawn
+    private static final int CELL = 4;
+    // Points per fork-join leaf, at least
+    private static final int CHUNK = 4096;
+
+    private final int radius;
+    private final float[] kernel;
+    private final int[] palette = new int[256];
+
+    private BufferedImage image;
+    private int dataVersion = -1;
+    private int width;
+    private int height;
+
+    /**
+     * @param radius blur radius in grid cells
+     */
+    public DensityHeatmap(int radius) {
+        this.radius = radius;
+
+        // Gaussian weights with sigma at half the radius
+        kernel = new float[radius * 2 + 1];
+        float sigma = Math.max(radius / 2f, 0.5f);
+        float total = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+            total += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= total;
+        }
+
+        // Transparent blue through green and yellow to opaque red
+        for (int i = 0; i < 256; i++) {
+            float t = i / 255f;
+            int r = (int) (255 * clamp(t * 3 - 1));
+            int g = (int) (255 * clamp(t < 0.66f ? t * 3 : (1 - t) * 3));
+            int b = (int) (255 * clamp(1 - t * 3));
+            int a = (int) (200 * clamp(t * 4));
+            palette[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Returns the heatmap for a panel size, recomputing it only if the data
+     * version or the size differ from the last call.
+     *
+     * @param xs point x positions in map pixels
+     * @param ys point y positions in map pixels
+     * @param mapWidth width of the map the positions refer to
+     * @param mapHeight height of the map the positions refer to
+     */
+    public BufferedImage getImage(int[] xs, int[] ys, int count, int version,
+                                  int mapWidth, int mapHeight, int panelWidth, int panelHeight) {
+        if (image != null && version == dataVersion && panelWidth == width && panelHeight == height) {
+            return image;
+        }
+        dataVersion = version;
+        width = panelWidth;
+        height = panelHeight;
+
+        int gw = Math.max(1, (panelWidth + CELL - 1) / CELL);
+        int gh = Math.max(1, (panelHeight + CELL - 1) / CELL);
+        float sx = gw / (float) mapWidth;
+        float sy = gh / (float) mapHeight;
+
+        // Split finely enough to keep every core busy, but not so finely that
+        // the per-leaf grids dominate
+        int leaf = Math.max(CHUNK, count / (ForkJoinPool.getCommonPoolParallelism() * 4 + 1));
+        int[] counts = ForkJoinPool.commonPool().invoke(new BinTask(xs, ys, 0, count, leaf, sx, sy, gw, gh));
+
+        float[] density = blur(counts, gw, gh);
+        float max = 0;
+        for (float d : density) {
+            max = Math.max(max, d);
+        }
+
+        if (image == null || image.getWidth() != gw || image.getHeight() != gh) {
+            image = new BufferedImage(gw, gh, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        float scale = max > 0 ? 255f / max : 0;
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = palette[Math.min(255, (int) (density[i] * scale))];
+        }
+        return image;
+    }
+
+    /**
+     * Blurs rows then columns; each pass is parallel over lines.
+     */
+    private float[] blur(int[] counts, int gw, int gh) {
+        float[] rows = new float[counts.length];
+        IntStream.range(0, gh).parallel().forEach(y -> {
+            int line = y * gw;
+            for (int x = 0; x < gw; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int xx = x + k;
+                    if (xx >= 0 && xx < gw) {
+                        sum += counts[line + xx] * kernel[k + radius];
+                    }
+                }
+                rows[line + x] = sum;
+            }
+        });
+        float[] out = new float[counts.length];
+        IntStream.range(0, gw).parallel().forEach(x -> {
+            for (int y = 0; y < gh; y++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int yy = y + k;
+                    if (yy >= 0 && yy < gh) {
+                        sum += rows[yy * gw + x] * kernel[k + radius];
+                    }
+                }
+                out[y * gw + x] = sum;
+            }
+        });
+        return out;
+    }
+
+    private static float clamp(float v) {
+        return Math.max(0, Math.min(1, v));
+    }
+
+    /**
+     * Counts points per cell over a range of the arrays. Halves are binned
+     * into separate grids and summed on join, so no cell is shared.
+     */
+    private static class BinTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] xs;
+        private final int[] ys;
+        private final int from;
+        private final int to;
+        private final int leaf;
+        private final float sx;
+        private final float sy;
+        private final int gw;
+        private final int gh;
+
+        BinTask(int[] xs, int[] ys, int from, int to, int leaf, float sx, float sy, int gw, int gh) {
+            this.xs = xs;
+            this.ys = ys;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.sx = sx;
+            this.sy = sy;
+            this.gw = gw;
+            this.gh = gh;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= leaf) {
+                int[] counts = new int[gw * gh];
+                for (int i = from; i < to; i++) {
+                    int cx = (int) (xs[i] * sx);
+                    int cy = (int) (ys[i] * sy);
+                    if (cx >= 0 && cx < gw && cy >= 0 && cy < gh) {
+                        counts[cy * gw + cx]++;
+                    }
+                }
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            BinTask left = new BinTask(xs, ys, from, mid, leaf, sx, sy, gw, gh);
+            left.fork();
+            int[] counts = new BinTask(xs, ys, mid, to, leaf, sx, sy, gw, gh).compute();
+            int[] other = left.join();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other[i];
+            }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package mygame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-phase timing for the game loop.
+ *
+ * Each phase records durations into a lock-free log-linear histogram, so the
+ * physics thread can record alongside the render thread without locking.
+ * At the end of every interval the histograms are swapped out for p50, p99
+ * and max, which the game shows on screen and which are appended to a file as
+ * one JSON object per line on a background thread.
+ */
+public class FrameProfiler {
+
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<Stats> latest = new ArrayList<>();
+    private final float interval;
+    private final Path exportFile;
+    private final ExecutorService writer;
+    private float sinceSnapshot = 0;
+    private float clock = 0;
+
+    /**
+     * @param interval seconds per snapshot
+     * @param exportFile file to append snapshots to, or null to keep them in memory only
+     */
+    public FrameProfiler(float interval, Path exportFile) {
+        this.interval = interval;
+        this.exportFile = exportFile;
+        this.writer = exportFile == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FrameProfilerWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a phase and returns the histogram to record it into.
+     */
+    public Histogram add(String name) {
+        Histogram histogram = new Histogram(name);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Advances the clock; at the end of each interval takes a snapshot.
+     *
+     * @return true if a new snapshot was taken
+     */
+    public boolean update(float tpf) {
+        clock += tpf;
+        sinceSnapshot += tpf;
+        if (sinceSnapshot < interval) {
+            return false;
+        }
+        sinceSnapshot = 0;
+
+        latest.clear();
+        for (Histogram histogram : histograms) {
+            latest.add(histogram.snapshotAndReset());
+        }
+        if (writer != null) {
+            String line = toJson(clock, latest);
+            writer.execute(() -> append(line));
+        }
+        return true;
+    }
+
+    /**
+     * Stats from the last completed interval, in registration order.
+     */
+    public List<Stats> getLatest() {
+        return latest;
+    }
+
+    /**
+     * Formats the latest snapshot as one line per phase, for the on-screen overlay.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder("Phase              p50 ms   p99 ms   max ms");
+        for (Stats stats : latest) {
+            text.append(String.format(Locale.ROOT, "%n%-16s %8.3f %8.3f %8.3f",
+                    stats.name, stats.p50 / 1e6, stats.p99 / 1e6, stats.max / 1e6));
+        }
+        return text.toString();
+    }
+
+    public void shutdown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    private void append(String line) {
+        try {
+            if (exportFile.getParent() != null) {
+                Files.createDirectories(exportFile.getParent());
+            }
+            Files.write(exportFile, (line + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static String toJson(float clock, List<Stats> snapshot) {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"time\":%.3f,\"phases\":{", clock));
+        for (int i = 0; i < snapshot.size(); i++) {
+            Stats stats = snapshot.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT,
+                    "\"%s\":{\"count\":%d,\"p50_us\":%.1f,\"p99_us\":%.1f,\"max_us\":%.1f}",
+                    stats.name, stats.count, stats.p50 / 1e3, stats.p99 / 1e3, stats.max / 1e3));
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Summary of one phase over one interval, in nanoseconds.
+     */
+    public static class Stats {
+        public final String name;
+        public final long count;
+        public final long p50;
+        public final long p99;
+        public final long max;
+
+        Stats(String name, long count, long p50, long p99, long max) {
+            this.name = name;
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond durations. Each power of two is split
+     * into 8 buckets, bounding the error of a reported percentile to 12.5%.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucketOf(nanos));
+            long currentMax;
+            while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+                // another thread raised the max; retry against its value
+            }
+        }
+
+        /**
+         * Records the time since start and returns the current time, so
+         * consecutive phases can be chained.
+         */
+        public long recordSince(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+
+        Stats snapshotAndReset() {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.getAndSet(i, 0);
+                count += snapshot[i];
+            }
+            // Bucket bounds can overshoot the largest value actually seen
+            long maxValue = max.getAndSet(0);
+            return new Stats(name, count, Math.min(maxValue, percentile(snapshot, count, 0.50)),
+                    Math.min(maxValue, percentile(snapshot, count, 0.99)), maxValue);
+        }
+
+        private static long percentile(long[] snapshot, long count, double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return bucketUpperBound(BUCKETS - 1);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long bucketUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package mygame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Local leaderboard: every finished run, kept in an append-only log, with the
+ * best runs in a small memory-mapped index.
+ *
+ * {@link #record(Run)} only queues the run. A writer thread appends whatever
+ * has queued up in one write and one fsync (group commit), then merges the
+ * batch into the index. The index is a fixed array of the top runs sorted by
+ * score, so reading the leaderboard costs the same however long the log is.
+ * The index header records how much of the log it covers; at startup only
+ * the log beyond that point is replayed into it. Runs carry their position
+ * in the log, so replaying a run the index already holds is harmless.
+ */
+public class HighScoreStore {
+
+    /**
+     * One finished run.
+     */
+    public static class Run {
+        public final long time;
+        public final long seed;
+        public final int score;
+        public final int deliveries;
+        public final float duration;
+        public final boolean win;
+        public final boolean rushHour;
+        long sequence = -1;
+
+        public Run(long time, long seed, int score, int deliveries, float duration, boolean win, boolean rushHour) {
+            this.time = time;
+            this.seed = seed;
+            this.score = score;
+            this.deliveries = deliveries;
+            this.duration = duration;
+            this.win = win;
+            this.rushHour = rushHour;
+        }
+    }
+
+    // Log records: time, seed, score, deliveries, duration, flags, CRC of the rest
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4 + 4 + 4;
+    private static final int FLAG_WIN = 1;
+    private static final int FLAG_RUSH_HOUR = 2;
+
+    // Index: header, then the top runs as log sequence numbers plus record bodies
+    private static final int INDEX_MAGIC = 0x50504853; // "PPHS"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER = 4 + 4 + 4 + 4 + 8;
+    private static final int ENTRY_SIZE = 8 + RECORD_SIZE;
+
+    // Upper bound on one group commit, to keep a batch's buffer small
+    private static final int MAX_BATCH = 4096;
+
+    // Queued by close() to stop the writer once everything before it is written
+    private static final Run CLOSE = new Run(0, 0, 0, 0, 0, false, false);
+
+    private final int capacity;
+    private final FileChannel log;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final BlockingQueue<Run> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(MAX_BATCH * RECORD_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private int entries;
+    private long nextSequence;
+    private volatile long committed = 0;
+
+    /**
+     * Opens or creates the store in a directory and recovers the index.
+     *
+     * @param capacity number of runs kept in the top-k index
+     */
+    public HighScoreStore(Path dir, int capacity) throws IOException {
+        this.capacity = capacity;
+        Files.createDirectories(dir);
+        log = FileChannel.open(dir.resolve("runs.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(dir.resolve("top.idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * ENTRY_SIZE);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        recover();
+
+        writer = new Thread(this::writeLoop, "HighScoreWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a run for writing. Never blocks.
+     */
+    public void record(Run run) {
+        queue.add(run);
+    }
+
+    /**
+     * Number of runs durably written so far in this session.
+     */
+    public long getCommittedCount() {
+        return committed;
+    }
+
+    /**
+     * The best runs, highest score first.
+     */
+    public synchronized List<Run> getTop(int n) {
+        List<Run> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(n, entries); i++) {
+            top.add(readEntry(i));
+        }
+        return top;
+    }
+
+    /**
+     * The highest score on record, or 0.
+     */
+    public synchronized int getBestScore() {
+        return entries == 0 ? 0 : index.getInt(entryOffset(0) + 8 + 16);
+    }
+
+    /**
+     * Writes anything still queued and closes the files.
+     */
+    public void close() throws IOException {
+        // Not an interrupt: that would close the log channel mid-write
+        queue.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.force();
+        log.close();
+        indexChannel.close();
+    }
+
+    /**
+     * Brings the index up to date with the log: checks the index header,
+     * cuts off torn records at the end of the log, and replays the runs the
+     * index has not seen yet. A damaged record with intact runs after it is
+     * skipped rather than cut off, so it cannot take those runs with it.
+     */
+    private void recover() throws IOException {
+        long covered = 0;
+        if (index.getInt(0) == INDEX_MAGIC && index.getInt(4) == INDEX_VERSION
+                && index.getInt(8) == capacity) {
+            entries = Math.min(index.getInt(12), capacity);
+            covered = index.getLong(16);
+            if (!indexConsistent()) {
+                // Interrupted mid-insert; the log has everything, so rebuild
+                entries = 0;
+                covered = 0;
+            }
+        } else {
+            // Missing or made with other settings: rebuild from the whole log
+            entries = 0;
+        }
+        long size = log.size();
+        if (covered > size || covered % RECORD_SIZE != 0) {
+            entries = 0;
+            covered = 0;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = covered;
+        // Start of the damaged records since the last intact one, or -1
+        long damaged = -1;
+        while (position + RECORD_SIZE <= size) {
+            record.clear();
+            log.read(record, position);
+            record.flip();
+            Run run = decode(record);
+            if (run == null) {
+                if (damaged < 0) {
+                    damaged = position;
+                }
+            } else {
+                if (damaged >= 0) {
+                    System.out.println("Skipping " + (position - damaged) / RECORD_SIZE
+                            + " damaged high score records");
+                    damaged = -1;
+                }
+                run.sequence = position / RECORD_SIZE;
+                insert(run);
+            }
+            position += RECORD_SIZE;
+        }
+        if (damaged >= 0) {
+            position = damaged;
+        }
+        if (position < size) {
+            System.out.println("Discarding " + (size - position) + " bytes of torn high score log");
+            log.truncate(position);
+        }
+        nextSequence = position / RECORD_SIZE;
+        writeHeader(position);
+        log.position(position);
+    }
+
+    /**
+     * Checks the recovered entries are sorted, distinct and intact.
+     */
+    private boolean indexConsistent() {
+        for (int i = 0; i < entries; i++) {
+            Run run = readEntry(i);
+            if (run == null || (i > 0 && run.score > readEntry(i - 1).score)) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (index.getLong(entryOffset(j)) == run.sequence) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<Run> batch = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                // Wait for one run, then take everything queued behind it
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            closing = batch.remove(CLOSE);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                commit(batch);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Appends a batch with one write and one fsync, then indexes it.
+     */
+    private void commit(List<Run> batch) throws IOException {
+        batchBuffer.clear();
+        for (Run run : batch) {
+            encode(run, batchBuffer);
+        }
+        batchBuffer.flip();
+        while (batchBuffer.hasRemaining()) {
+            log.write(batchBuffer);
+        }
+        log.force(false);
+
+        synchronized (this) {
+            for (Run run : batch) {
+                run.sequence = nextSequence++;
+                insert(run);
+            }
+            writeHeader(log.position());
+        }
+        committed += batch.size();
+    }
+
+    private void encode(Run run, ByteBuffer out) {
+        int start = out.position();
+        out.putLong(run.time);
+        out.putLong(run.seed);
+        out.putInt(run.score);
+        out.putInt(run.deliveries);
+        out.putFloat(run.duration);
+        out.putInt((run.win ? FLAG_WIN : 0) | (run.rushHour ? FLAG_RUSH_HOUR : 0));
+        out.putInt(checksum(out, start, RECORD_SIZE - 4));
+    }
+
+    /**
+     * Reads a record, or returns null if its checksum is wrong.
+     */
+    private Run decode(ByteBuffer in) {
+        int start = in.position();
+        if (in.getInt(start + RECORD_SIZE - 4) != checksum(in, start, RECORD_SIZE - 4)) {
+            return null;
+        }
+        long time = in.getLong();
+        long seed = in.getLong();
+        int score = in.getInt();
+        int deliveries = in.getInt();
+        float duration = in.getFloat();
+        int flags = in.getInt();
+        in.getInt();
+        return new Run(time, seed, score, deliveries, duration,
+                (flags & FLAG_WIN) != 0, (flags & FLAG_RUSH_HOUR) != 0);
+    }
+
+    private static int checksum(ByteBuffer buffer, int start, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(start + length).position(start);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Inserts a run into the sorted index if it makes the top k. A run that is
+     * already there, from an earlier replay, is skipped.
+     */
+    private void insert(Run run) {
+        int slot = entries;
+        for (int i = 0; i < entries; i++) {
+            int offset = entryOffset(i);
+            if (index.getLong(offset) == run.sequence) {
+                return;
+            }
+            if (slot == entries && run.score > index.getInt(offset + 8 + 16)) {
+                slot = i;
+            }
+        }
+        if (slot >= capacity) {
+            return;
+        }
+
+        // Shift lower runs down one place, dropping the last if full
+        int last = Math.min(entries, capacity - 1);
+        for (int i = last; i > slot; i--) {
+            copyEntry(i - 1, i);
+        }
+        int offset = entryOffset(slot);
+        index.putLong(offset, run.sequence);
+        ByteBuffer body = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        encode(run, body);
+        for (int k = 0; k < RECORD_SIZE; k++) {
+            index.put(offset + 8 + k, body.get(k));
+        }
+        if (entries < capacity) {
+            entries++;
+        }
+    }
+
+    private Run readEntry(int i) {
+        ByteBuffer body = index.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        body.position(entryOffset(i) + 8);
+        body.limit(entryOffset(i) + 8 + RECORD_SIZE);
+        Run run = decode(body.slice().order(ByteOrder.LITTLE_ENDIAN));
+        if (run != null) {
+            run.sequence = index.getLong(entryOffset(i));
+        }
+        return run;
+    }
+
+    private void copyEntry(int from, int to) {
+        int src = entryOffset(from);
+        int dst = entryOffset(to);
+        for (int k = 0; k < ENTRY_SIZE; k++) {
+            index.put(dst + k, index.get(src + k));
+        }
+    }
+
+    private void writeHeader(long coveredLog) {
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, INDEX_VERSION);
+        index.putInt(8, capacity);
+        index.putInt(12, entries);
+        index.putLong(16, coveredLog);
+    }
+
+    private static int entryOffset(int i) {
+        return INDEX_HEADER + i * ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,184 @@
+package mygame;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.system.NanoTimer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the player's input stream so a run can be replayed later.
+ *
+ * Every frame becomes one tick record holding the frame time and the camera
+ * direction, and every onAction event is written just before the tick it was
+ * delivered in. Values are delta-encoded against the previous tick, so a tick
+ * where nothing changed costs a single byte.
+ */
+public class InputRecorder {
+
+    // File header
+    static final int MAGIC = 0x50504952; // "PPIR"
+    static final short VERSION = 1;
+
+    // Action names, indexed by their code in the log
+    static final String[] ACTIONS = { "Left", "Right", "Up", "Down", "Jump", "Restart" };
+
+    // Record opcodes: ticks use the low bits as "field changed" flags,
+    // actions set the top bit and pack (action index, pressed) below it
+    static final int TICK_TPF = 0x01;
+    static final int TICK_YAW = 0x02;
+    static final int TICK_PITCH = 0x04;
+    static final int ACTION_FLAG = 0x80;
+
+    // Angles are stored as 16-bit fractions of a full turn, frame time in microseconds
+    static final int ANGLE_STEPS = 1 << 16;
+    static final float MICROS = 1000000f;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    private int lastTpfMicros = 0;
+    private int lastYaw = 0;
+    private int lastPitch = 0;
+    private long ticks = 0;
+
+    public InputRecorder(Path file, long seed) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putLong(seed);
+    }
+
+    /**
+     * Writes an input event; it applies to the next recorded tick.
+     */
+    public void recordAction(String name, boolean isPressed) throws IOException {
+        int action = actionIndex(name);
+        if (action < 0) {
+            return;
+        }
+        ensureRoom(1);
+        buffer.put((byte) (ACTION_FLAG | (action << 1) | (isPressed ? 1 : 0)));
+    }
+
+    /**
+     * Writes the tick for the current frame. The frame time must already be
+     * quantized (see {@link RecordingTimer}) so replay sees the exact same value.
+     */
+    public void recordTick(float tpf, int yaw, int pitch) throws IOException {
+        int tpfMicros = Math.round(tpf * MICROS);
+        int flags = 0;
+        if (tpfMicros != lastTpfMicros) flags |= TICK_TPF;
+        if (yaw != lastYaw) flags |= TICK_YAW;
+        if (pitch != lastPitch) flags |= TICK_PITCH;
+
+        // One opcode byte plus at most three 5-byte varints
+        ensureRoom(16);
+        buffer.put((byte) flags);
+        if ((flags & TICK_TPF) != 0) putVarInt(zigZag(tpfMicros - lastTpfMicros));
+        if ((flags & TICK_YAW) != 0) putVarInt(zigZag(wrapAngle(yaw - lastYaw)));
+        if ((flags & TICK_PITCH) != 0) putVarInt(zigZag(pitch - lastPitch));
+
+        lastTpfMicros = tpfMicros;
+        lastYaw = yaw;
+        lastPitch = pitch;
+        ticks++;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int actionIndex(String name) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Takes the shortest way round the circle so a turn across yaw 0 stays a small delta.
+     */
+    static int wrapAngle(int delta) {
+        return (short) delta;
+    }
+
+    /**
+     * Quantizes the horizontal heading of a direction vector.
+     */
+    static int quantizeYaw(Vector3f direction) {
+        float yaw = FastMath.atan2(direction.x, direction.z);
+        return Math.round(yaw / FastMath.TWO_PI * ANGLE_STEPS) & (ANGLE_STEPS - 1);
+    }
+
+    /**
+     * Quantizes the vertical angle of a direction vector.
+     */
+    static int quantizePitch(Vector3f direction) {
+        float pitch = FastMath.asin(FastMath.clamp(direction.y, -1f, 1f));
+        return Math.round(pitch / FastMath.TWO_PI * ANGLE_STEPS);
+    }
+
+    static float angle(int steps) {
+        return steps * FastMath.TWO_PI / ANGLE_STEPS;
+    }
+
+    /**
+     * Frame timer that rounds the frame time to whole microseconds, the
+     * resolution of the log, so the live run and its replay step identically.
+     */
+    public static class RecordingTimer extends NanoTimer {
+        @Override
+        public float getTimePerFrame() {
+            return Math.round(super.getTimePerFrame() * MICROS) / MICROS;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package mygame;
+
+import com.jme3.input.controls.ActionListener;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.system.Timer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays back a log written by {@link InputRecorder}.
+ *
+ * Each call to {@link #nextTick(ActionListener)} delivers the recorded input
+ * events for one frame and exposes that frame's time step and camera angles.
+ */
+public class InputReplayer {
+
+    private final ByteBuffer buffer;
+    private final long seed;
+
+    private int tpfMicros = 0;
+    private int yaw = 0;
+    private int pitch = 0;
+    private boolean finished = false;
+
+    public InputReplayer(Path file) throws IOException {
+        // Logs are a few kilobytes per minute, so read the whole file up front
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+        }
+
+        if (buffer.remaining() < 14 || buffer.getInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input recording: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version + ": " + file);
+        }
+        seed = buffer.getLong();
+    }
+
+    /**
+     * Sends the next frame's input events to the listener and loads its tick.
+     *
+     * @return false once the log is exhausted
+     */
+    public boolean nextTick(ActionListener listener) {
+        while (buffer.hasRemaining()) {
+            int op = buffer.get() & 0xFF;
+
+            if ((op & InputRecorder.ACTION_FLAG) != 0) {
+                String name = InputRecorder.ACTIONS[(op >> 1) & 0x3F];
+                listener.onAction(name, (op & 1) != 0, getTimePerFrame());
+                continue;
+            }
+
+            if ((op & InputRecorder.TICK_TPF) != 0) {
+                tpfMicros += InputRecorder.unZigZag(getVarInt());
+            }
+            if ((op & InputRecorder.TICK_YAW) != 0) {
+                yaw = (yaw + InputRecorder.unZigZag(getVarInt())) & (InputRecorder.ANGLE_STEPS - 1);
+            }
+            if ((op & InputRecorder.TICK_PITCH) != 0) {
+                pitch += InputRecorder.unZigZag(getVarInt());
+            }
+            return true;
+        }
+        finished = true;
+        return false;
+    }
+
+    public float getTimePerFrame() {
+        return tpfMicros / InputRecorder.MICROS;
+    }
+
+    public int getYaw() {
+        return yaw;
+    }
+
+    public int getPitch() {
+        return pitch;
+    }
+
+    /**
+     * Rebuilds the recorded camera direction for the current tick.
+     */
+    public Vector3f getDirection(Vector3f store) {
+        float y = InputRecorder.angle(yaw);
+        float p = InputRecorder.angle(pitch);
+        float cosPitch = FastMath.cos(p);
+        return store.set(cosPitch * FastMath.sin(y), FastMath.sin(p), cosPitch * FastMath.cos(y));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private int getVarInt() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Timer that ignores the wall clock and steps the game by the recorded frame
+     * times. Advancing the timer also replays the frame's input events, at the
+     * same point in the frame where the input manager would have fired them.
+     * Until {@link #setRunning(boolean)} is called, frames are not taken from
+     * the log and advance at a nominal 60 frames per second.
+     */
+    public static class ReplayTimer extends Timer {
+        private static final int IDLE_FRAME_MICROS = 16667;
+
+        private final InputReplayer replayer;
+        private final ActionListener listener;
+        private long elapsedMicros = 0;
+        private boolean running = false;
+
+        public ReplayTimer(InputReplayer replayer, ActionListener listener) {
+            this.replayer = replayer;
+            this.listener = listener;
+        }
+
+        @Override
+        public long getTime() {
+            return elapsedMicros;
+        }
+
+        @Override
+        public long getResolution() {
+            return 1000000L;
+        }
+
+        @Override
+        public float getFrameRate() {
+            float tpf = getTimePerFrame();
+            return tpf > 0 ? 1f / tpf : 0f;
+        }
+
+        @Override
+        public float getTimePerFrame() {
+            if (!running) {
+                return IDLE_FRAME_MICROS / InputRecorder.MICROS;
+            }
+            return replayer.isFinished() ? 0f : replayer.getTimePerFrame();
+        }
+
+        @Override
+        public void update() {
+            if (!running) {
+                elapsedMicros += IDLE_FRAME_MICROS;
+            } else if (replayer.nextTick(listener)) {
+                elapsedMicros += replayer.tpfMicros;
+            }
+        }
+
+        /**
+         * Starts taking frames from the log, once the game is ready to play.
+         */
+        public void setRunning(boolean running) {
+            this.running = running;
+        }
+
+        @Override
+        public void reset() {
+            elapsedMicros = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Bakes the sun and ambient light into vertex colours.
+ *
+ * The city never moves and neither does the sun, so the diffuse term the
+ * lighting shader would compute every frame is computed once per vertex here
+ * instead. Baked geometry uses the unshaded material, which multiplies the
+ * vertex colour by its base colour. Only the rotation of a geometry affects
+ * its lighting, so baked objects may still be moved around.
+ */
+public class LightBaker {
+
+    private final Vector3f toSun;
+    private final ColorRGBA sunColor;
+    private final ColorRGBA ambientColor;
+
+    /**
+     * @param sunDirection direction the sunlight travels in
+     */
+    public LightBaker(Vector3f sunDirection, ColorRGBA sunColor, ColorRGBA ambientColor) {
+        this.toSun = sunDirection.negate().normalizeLocal();
+        this.sunColor = sunColor.clone();
+        this.ambientColor = ambientColor.clone();
+    }
+
+    /**
+     * Light arriving at a surface with the given world normal.
+     */
+    public ColorRGBA shade(Vector3f normal, ColorRGBA store) {
+        float lambert = Math.max(0f, normal.dot(toSun));
+        store.r = Math.min(1f, ambientColor.r + sunColor.r * lambert);
+        store.g = Math.min(1f, ambientColor.g + sunColor.g * lambert);
+        store.b = Math.min(1f, ambientColor.b + sunColor.b * lambert);
+        store.a = 1f;
+        return store;
+    }
+
+    /**
+     * Writes lighting into a mesh's colour buffer, for a mesh drawn with the
+     * given world rotation. Scaling along the box axes, as the instanced
+     * buildings do, leaves axis-aligned normals unchanged.
+     */
+    public void bakeMesh(Mesh mesh, Quaternion rotation) {
+        FloatBuffer normals = mesh.getFloatBuffer(VertexBuffer.Type.Normal);
+        int vertices = mesh.getVertexCount();
+        FloatBuffer colors = BufferUtils.createFloatBuffer(vertices * 4);
+
+        Vector3f normal = new Vector3f();
+        ColorRGBA light = new ColorRGBA();
+        for (int i = 0; i < vertices; i++) {
+            normal.set(normals.get(i * 3), normals.get(i * 3 + 1), normals.get(i * 3 + 2));
+            rotation.multLocal(normal);
+            if (normal.lengthSquared() > FastMath.FLT_EPSILON) {
+                normal.normalizeLocal();
+            }
+            shade(normal, light);
+            colors.put(light.r).put(light.g).put(light.b).put(light.a);
+        }
+        colors.flip();
+        mesh.setBuffer(VertexBuffer.Type.Color, 4, colors);
+    }
+
+    /**
+     * Bakes every geometry under a spatial using its world rotation. Meshes
+     * must not be shared with geometries facing other ways.
+     */
+    public void bake(Spatial spatial) {
+        spatial.updateGeometricState();
+        spatial.depthFirstTraversal(child -> {
+            if (child instanceof Geometry) {
+                bakeMesh(((Geometry) child).getMesh(), child.getWorldRotation());
+            }
+        });
+    }
+
+    /**
+     * Creates an unshaded material that shows baked lighting over a base colour.
+     */
+    public static Material createMaterial(AssetManager assetManager, ColorRGBA color) {
+        Material material = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+        material.setColor("Color", color);
+        material.setBoolean("VertexColor", true);
+        return material;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Maps latitude and longitude to pixel positions on the world map image.
+ *
+ * Longitude is linear in both projections. Latitude goes through a lookup
+ * table sampled every hundredth of a degree and linearly interpolated, so
+ * Web Mercator costs no logarithms or tangents per city. Whole datasets are
+ * projected with {@link #project}, a single pass over flat arrays.
+ */
+public class MapProjection {
+
+    public enum Type { EQUIRECTANGULAR, WEB_MERCATOR }
+
+    private static final int STEPS_PER_DEGREE = 100;
+    // Web Mercator's cut-off, where the square world map ends
+    private static final double MAX_MERCATOR_LAT = 85.05112878;
+
+    private final Type type;
+    private final int width;
+    private final int height;
+    // Latitude to y, as a fraction of the map height
+    private final float[] latToY = new float[180 * STEPS_PER_DEGREE + 1];
+
+    public MapProjection(Type type, int width, int height) {
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < latToY.length; i++) {
+            double lat = i / (double) STEPS_PER_DEGREE - 90;
+            if (type == Type.WEB_MERCATOR) {
+                double phi = Math.toRadians(Math.max(-MAX_MERCATOR_LAT, Math.min(MAX_MERCATOR_LAT, lat)));
+                latToY[i] = (float) (0.5 - Math.log(Math.tan(Math.PI / 4 + phi / 2)) / (2 * Math.PI));
+            } else {
+                latToY[i] = (float) ((90 - lat) / 180);
+            }
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int projectX(double lon) {
+        return (int) ((lon + 180) / 360 * width);
+    }
+
+    public int projectY(double lat) {
+        double t = (Math.max(-90, Math.min(90, lat)) + 90) * STEPS_PER_DEGREE;
+        int i = Math.min((int) t, latToY.length - 2);
+        float f = (float) (t - i);
+        return (int) ((latToY[i] + (latToY[i + 1] - latToY[i]) * f) * height);
+    }
+
+    /**
+     * Projects the first count positions into xs and ys.
+     */
+    public void project(double[] lats, double[] lons, int count, int[] xs, int[] ys) {
+        for (int i = 0; i < count; i++) {
+            xs[i] = projectX(lons[i]);
+            ys[i] = projectY(lats[i]);
+        }
+    }
+}
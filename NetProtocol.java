@@ -0,0 +1,95 @@
+package mygame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format shared by {@link CourierServer} and {@link CourierClient}.
+ *
+ * Every datagram starts with a one byte packet type. Integers are unsigned
+ * LEB128 varints, with signed values zig-zag encoded first as in the input
+ * recordings. Clients send their whole input state every tick instead of
+ * individual key events, so a lost packet is simply replaced by the next one.
+ */
+public final class NetProtocol {
+
+    static final int VERSION = 2;
+
+    // Client to server
+    static final byte CONNECT = 1;     // version
+    static final byte INPUT = 2;       // input seq, acked snapshot seq, buttons, yaw
+    static final byte DISCONNECT = 3;
+
+    // Server to client
+    static final byte WELCOME = 10;    // courier id, city seed, grid size, tick rate
+    static final byte SNAPSHOT = 11;   // see Snapshot.write
+    static final byte REJECT = 12;     // reason string length, bytes
+
+    // Input buttons, in InputRecorder.ACTIONS order
+    static final int BUTTON_LEFT = 1;
+    static final int BUTTON_RIGHT = 2;
+    static final int BUTTON_UP = 4;
+    static final int BUTTON_DOWN = 8;
+    static final int BUTTON_JUMP = 16;
+
+    // Loopback allows datagrams up to 64KB, comfortably more than a full snapshot
+    static final int MAX_PACKET = 65507;
+
+    // Positions are sent in centimetres
+    static final float POSITION_SCALE = 100f;
+
+    private NetProtocol() {
+    }
+
+    /**
+     * Returns the button bit for an action name, or 0 if it is not a movement action.
+     */
+    static int button(String action) {
+        switch (action) {
+            case "Left": return BUTTON_LEFT;
+            case "Right": return BUTTON_RIGHT;
+            case "Up": return BUTTON_UP;
+            case "Down": return BUTTON_DOWN;
+            case "Jump": return BUTTON_JUMP;
+            default: return 0;
+        }
+    }
+
+    static int quantizePosition(float value) {
+        return Math.round(value * POSITION_SCALE);
+    }
+
+    static float position(int quantized) {
+        return quantized / POSITION_SCALE;
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static void putSigned(ByteBuffer buffer, int value) {
+        putVarInt(buffer, InputRecorder.zigZag(value));
+    }
+
+    static int getSigned(ByteBuffer buffer) {
+        return InputRecorder.unZigZag(getVarInt(buffer));
+    }
+}
@@ -0,0 +1,226 @@
+package mygame;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+import java.util.Arrays;
+
+/**
+ * Occlusion culling for the building grid using an occlusion horizon.
+ *
+ * Buildings are solid boxes standing on the ground, so everything a building
+ * hides from the camera lies below its top edge and further away. The culler
+ * keeps one horizon value per azimuth bin around the camera (the steepest
+ * slope hidden so far, with the far distance of the building that set it)
+ * and walks the grid in rings outward from the camera's cell. A building
+ * that lies beyond those occluders and whose top stays under the horizon
+ * across all of its bins is occluded; otherwise its top edge is merged into
+ * the horizon for the buildings behind it.
+ *
+ * Occludees are tested with their largest screen footprint and occluders
+ * contribute only bins they cover completely. Rings only roughly follow
+ * distance, so the depth check keeps a taller building visited early from
+ * hiding a nearer one; the test never hides a building that could be seen.
+ */
+public class OcclusionCuller {
+
+    private static final int BINS = 512;
+    private static final float BINS_PER_RADIAN = BINS / FastMath.TWO_PI;
+
+    private final int gridSize;
+    private final float startX;
+    private final float startZ;
+    private final float spacing;
+
+    // Per grid cell: building id, or -1 for an empty lot
+    private final int[] cellBuilding;
+
+    // Per building id: footprint centre, half extents of the solid body, roof overhang and top
+    private final float[] posX;
+    private final float[] posZ;
+    private final float[] halfWidth;
+    private final float[] halfDepth;
+    private final float[] overhang;
+    private final float[] top;
+    private final boolean[] occluded;
+
+    private final float[] horizon = new float[BINS];
+    private final float[] horizonDistance = new float[BINS];
+    private final float[] spanScratch = new float[2];
+    private int occludedCount = 0;
+    private float viewDistanceSq = Float.POSITIVE_INFINITY;
+
+    public OcclusionCuller(int gridSize, float startX, float startZ, float spacing) {
+        this.gridSize = gridSize;
+        this.startX = startX;
+        this.startZ = startZ;
+        this.spacing = spacing;
+
+        int cells = gridSize * gridSize;
+        cellBuilding = new int[cells];
+        Arrays.fill(cellBuilding, -1);
+        posX = new float[cells];
+        posZ = new float[cells];
+        halfWidth = new float[cells];
+        halfDepth = new float[cells];
+        overhang = new float[cells];
+        top = new float[cells];
+        occluded = new boolean[cells];
+    }
+
+    /**
+     * Registers the building in a grid cell. Ids come from the
+     * {@link BuildingRenderer} and are below gridSize * gridSize.
+     */
+    public void addBuilding(int cellX, int cellZ, int id, float x, float z,
+            float halfWidth, float halfDepth, float top, float overhang) {
+        cellBuilding[cellX * gridSize + cellZ] = id;
+        this.posX[id] = x;
+        this.posZ[id] = z;
+        this.halfWidth[id] = halfWidth;
+        this.halfDepth[id] = halfDepth;
+        this.top[id] = top;
+        this.overhang[id] = overhang;
+    }
+
+    public boolean isOccluded(int id) {
+        return occluded[id];
+    }
+
+    public int getOccludedCount() {
+        return occludedCount;
+    }
+
+    /**
+     * Recomputes which buildings are hidden from the given eye position.
+     * Only buildings whose centre is within the view distance are tested;
+     * the others are culled by distance anyway and keep a stale result.
+     */
+    public void cull(Vector3f eye, float viewDistance) {
+        Arrays.fill(horizon, Float.NEGATIVE_INFINITY);
+        occludedCount = 0;
+        viewDistanceSq = viewDistance * viewDistance;
+
+        int cx = Math.max(0, Math.min(gridSize - 1, Math.round((eye.x - startX) / spacing)));
+        int cz = Math.max(0, Math.min(gridSize - 1, Math.round((eye.z - startZ) / spacing)));
+
+        // Rings of cells around the camera, nearest first, so occluders are
+        // usually merged before the buildings they hide are tested. Rings
+        // stop once they are wholly past the view distance
+        int maxRing = Math.max(Math.max(cx, gridSize - 1 - cx), Math.max(cz, gridSize - 1 - cz));
+        maxRing = Math.min(maxRing, (int) FastMath.ceil(viewDistance / spacing) + 1);
+        visit(cx, cz, eye);
+        for (int r = 1; r <= maxRing; r++) {
+            for (int x = cx - r; x <= cx + r; x++) {
+                visit(x, cz - r, eye);
+                visit(x, cz + r, eye);
+            }
+            for (int z = cz - r + 1; z <= cz + r - 1; z++) {
+                visit(cx - r, z, eye);
+                visit(cx + r, z, eye);
+            }
+        }
+    }
+
+    private void visit(int x, int z, Vector3f eye) {
+        if (x < 0 || z < 0 || x >= gridSize || z >= gridSize) {
+            return;
+        }
+        int id = cellBuilding[x * gridSize + z];
+        if (id < 0) {
+            return;
+        }
+
+        // Beyond the view distance: culled by distance, and no use as an
+        // occluder, since whatever it hides is further still
+        float cx = posX[id] - eye.x;
+        float cz = posZ[id] - eye.z;
+        if (cx * cx + cz * cz >= viewDistanceSq) {
+            occluded[id] = false;
+            return;
+        }
+
+        // Visibility of the whole building, roof overhang included
+        float dy = top[id] - eye.y;
+        float outerW = halfWidth[id] + overhang[id];
+        float outerD = halfDepth[id] + overhang[id];
+        float ox = Math.abs(eye.x - posX[id]);
+        float oz = Math.abs(eye.z - posZ[id]);
+        float near = distance(Math.max(0, ox - outerW), Math.max(0, oz - outerD));
+        if (near > 0) {
+            float far = distance(ox + outerW, oz + outerD);
+            float maxSlope = Math.max(dy / near, dy / far);
+            if (isBelowHorizon(id, outerW, outerD, eye, maxSlope, near)) {
+                occluded[id] = true;
+                occludedCount++;
+                return;
+            }
+        }
+        occluded[id] = false;
+
+        // Merge the solid body's top edge into the horizon
+        float w = halfWidth[id];
+        float d = halfDepth[id];
+        near = distance(Math.max(0, ox - w), Math.max(0, oz - d));
+        if (near > 0) {
+            float far = distance(ox + w, oz + d);
+            raiseHorizon(id, w, d, eye, Math.min(dy / near, dy / far), far);
+        }
+    }
+
+    private boolean isBelowHorizon(int id, float w, float d, Vector3f eye, float slope, float near) {
+        // Every bin the footprint touches must hide it, with an occluder in front of it
+        float[] span = azimuthSpan(id, w, d, eye);
+        int first = (int) FastMath.floor(span[0] * BINS_PER_RADIAN);
+        int last = (int) FastMath.ceil(span[1] * BINS_PER_RADIAN);
+        for (int b = first; b < last; b++) {
+            int bin = Math.floorMod(b, BINS);
+            if (horizon[bin] <= slope || horizonDistance[bin] > near) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void raiseHorizon(int id, float w, float d, Vector3f eye, float slope, float far) {
+        // Only bins the footprint covers completely
+        float[] span = azimuthSpan(id, w, d, eye);
+        int first = (int) FastMath.ceil(span[0] * BINS_PER_RADIAN);
+        int last = (int) FastMath.floor(span[1] * BINS_PER_RADIAN);
+        for (int b = first; b < last; b++) {
+            int bin = Math.floorMod(b, BINS);
+            if (slope > horizon[bin]) {
+                horizon[bin] = slope;
+                horizonDistance[bin] = far;
+            }
+        }
+    }
+
+    /**
+     * Returns the azimuth interval covered by a footprint seen from outside it,
+     * as [start, end] in radians with end - start below PI.
+     */
+    private float[] azimuthSpan(int id, float w, float d, Vector3f eye) {
+        float relX = posX[id] - eye.x;
+        float relZ = posZ[id] - eye.z;
+        float centre = FastMath.atan2(relZ, relX);
+        float min = 0;
+        float max = 0;
+        for (int corner = 0; corner < 4; corner++) {
+            float cornerX = relX + ((corner & 1) == 0 ? -w : w);
+            float cornerZ = relZ + ((corner & 2) == 0 ? -d : d);
+            float offset = FastMath.atan2(cornerZ, cornerX) - centre;
+            if (offset > FastMath.PI) offset -= FastMath.TWO_PI;
+            if (offset < -FastMath.PI) offset += FastMath.TWO_PI;
+            min = Math.min(min, offset);
+            max = Math.max(max, offset);
+        }
+        spanScratch[0] = centre + min + FastMath.PI;
+        spanScratch[1] = centre + max + FastMath.PI;
+        return spanScratch;
+    }
+
+    private static float distance(float x, float z) {
+        return FastMath.sqrt(x * x + z * z);
+    }
+}
@@ -0,0 +1,328 @@
+package mygame;
+
+import java.util.Arrays;
+
+/**
+ * Schedules pizza orders across many delivery locations at once.
+ *
+ * Active orders sit in an indexed binary heap ordered by deadline, so the
+ * per-frame update only looks at orders that are actually due and both
+ * expiring and completing an order cost O(log n). New orders go to the free
+ * delivery location nearest to a requested point, found through a uniform
+ * grid over the locations.
+ *
+ * Times are absolute game-clock seconds rather than per-order countdowns, so
+ * nothing has to be decremented each frame.
+ */
+public class OrderScheduler {
+
+    /**
+     * Notified when orders appear and when they run out of time.
+     */
+    public interface Listener {
+        void orderPlaced(int order, int location);
+
+        void orderExpired(int order, int location);
+    }
+
+    // Delivery locations and the order waiting at each (-1 if free)
+    private int locationCount = 0;
+    private float[] locX = new float[64];
+    private float[] locZ = new float[64];
+    private int[] locOrder = new int[64];
+    private int freeLocations = 0;
+
+    // Uniform grid over locations, in compressed rows
+    private final float cellSize;
+    private float minX;
+    private float minZ;
+    private int cellsX;
+    private int cellsZ;
+    private int[] cellStart;
+    private int[] cellLocations;
+
+    // Orders by id; ids of finished orders are recycled through a free list
+    private float[] deadline = new float[64];
+    private int[] orderLocation = new int[64];
+    private int[] heapIndex = new int[64];
+    private int[] freeIds = new int[64];
+    private int freeIdCount = 0;
+    private int orderCapacityUsed = 0;
+
+    // Min-heap of order ids by deadline
+    private int[] heap = new int[64];
+    private int heapSize = 0;
+
+    public OrderScheduler(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Adds a delivery location. Call {@link #buildIndex()} once all are added.
+     *
+     * @return the location index
+     */
+    public int addLocation(float x, float z) {
+        if (locationCount == locX.length) {
+            int size = locationCount * 2;
+            locX = Arrays.copyOf(locX, size);
+            locZ = Arrays.copyOf(locZ, size);
+            locOrder = Arrays.copyOf(locOrder, size);
+        }
+        locX[locationCount] = x;
+        locZ[locationCount] = z;
+        locOrder[locationCount] = -1;
+        freeLocations++;
+        return locationCount++;
+    }
+
+    /**
+     * Buckets the locations into the grid used for assignment.
+     */
+    public void buildIndex() {
+        minX = Float.MAX_VALUE;
+        minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < locationCount; i++) {
+            minX = Math.min(minX, locX[i]);
+            minZ = Math.min(minZ, locZ[i]);
+            maxX = Math.max(maxX, locX[i]);
+            maxZ = Math.max(maxZ, locZ[i]);
+        }
+        cellsX = locationCount == 0 ? 1 : (int) ((maxX - minX) / cellSize) + 1;
+        cellsZ = locationCount == 0 ? 1 : (int) ((maxZ - minZ) / cellSize) + 1;
+
+        cellStart = new int[cellsX * cellsZ + 1];
+        for (int i = 0; i < locationCount; i++) {
+            cellStart[cellOf(locX[i], locZ[i]) + 1]++;
+        }
+        for (int c = 0; c < cellsX * cellsZ; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length);
+        cellLocations = new int[locationCount];
+        for (int i = 0; i < locationCount; i++) {
+            cellLocations[fill[cellOf(locX[i], locZ[i])]++] = i;
+        }
+    }
+
+    /**
+     * Places an order at the free location nearest to (x, z).
+     *
+     * @return the order id, or -1 if every location already has an order
+     */
+    public int placeOrder(float now, float timeLimit, float x, float z, Listener listener) {
+        int location = nearestFreeLocation(x, z);
+        if (location < 0) {
+            return -1;
+        }
+
+        int order = allocateOrder();
+        deadline[order] = now + timeLimit;
+        orderLocation[order] = location;
+        locOrder[location] = order;
+        freeLocations--;
+        heapPush(order);
+
+        listener.orderPlaced(order, location);
+        return order;
+    }
+
+    /**
+     * Completes the order waiting at a location.
+     *
+     * @return seconds left before its deadline, or -1 if the location has no order
+     */
+    public float completeOrder(int location, float now) {
+        int order = location >= 0 && location < locationCount ? locOrder[location] : -1;
+        if (order < 0) {
+            return -1;
+        }
+        float remaining = Math.max(0, deadline[order] - now);
+        heapRemove(heapIndex[order]);
+        releaseOrder(order);
+        return remaining;
+    }
+
+    /**
+     * Expires every order whose deadline has passed. Only due orders are touched.
+     *
+     * @return the number of orders expired
+     */
+    public int expireOrders(float now, Listener listener) {
+        int expired = 0;
+        while (heapSize > 0 && deadline[heap[0]] <= now) {
+            int order = heap[0];
+            int location = orderLocation[order];
+            heapRemove(0);
+            releaseOrder(order);
+            listener.orderExpired(order, location);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Drops all orders, leaving every location free.
+     */
+    public void clear() {
+        for (int i = 0; i < heapSize; i++) {
+            locOrder[orderLocation[heap[i]]] = -1;
+        }
+        heapSize = 0;
+        freeIdCount = 0;
+        orderCapacityUsed = 0;
+        freeLocations = locationCount;
+    }
+
+    public int getActiveOrderCount() {
+        return heapSize;
+    }
+
+    /**
+     * Returns the earliest deadline among active orders, or infinity if there are none.
+     */
+    public float getNextDeadline() {
+        return heapSize > 0 ? deadline[heap[0]] : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the location of the order due soonest, or -1 if there are none.
+     */
+    public int getNextDueLocation() {
+        return heapSize > 0 ? orderLocation[heap[0]] : -1;
+    }
+
+    public int getOrderAt(int location) {
+        return locOrder[location];
+    }
+
+    public int getLocationCount() {
+        return locationCount;
+    }
+
+    private int nearestFreeLocation(float x, float z) {
+        if (freeLocations == 0) {
+            return -1;
+        }
+        int cx = clamp((int) ((x - minX) / cellSize), cellsX);
+        int cz = clamp((int) ((z - minZ) / cellSize), cellsZ);
+        int best = -1;
+        float bestDist = Float.MAX_VALUE;
+
+        // Rings of cells outward; stop once a ring is farther than the best match
+        int maxRing = Math.max(cellsX, cellsZ);
+        for (int r = 0; r < maxRing; r++) {
+            float ringDist = (r - 1) * cellSize;
+            if (best >= 0 && ringDist > 0 && ringDist * ringDist > bestDist) {
+                break;
+            }
+            for (int nx = cx - r; nx <= cx + r; nx++) {
+                for (int nz = cz - r; nz <= cz + r; nz++) {
+                    if (nx < 0 || nz < 0 || nx >= cellsX || nz >= cellsZ
+                            || (Math.abs(nx - cx) != r && Math.abs(nz - cz) != r)) {
+                        continue;
+                    }
+                    int cell = nx * cellsZ + nz;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int location = cellLocations[k];
+                        if (locOrder[location] >= 0) {
+                            continue;
+                        }
+                        float dx = locX[location] - x;
+                        float dz = locZ[location] - z;
+                        float dist = dx * dx + dz * dz;
+                        if (dist < bestDist) {
+                            bestDist = dist;
+                            best = location;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int cellOf(float x, float z) {
+        return clamp((int) ((x - minX) / cellSize), cellsX) * cellsZ + clamp((int) ((z - minZ) / cellSize), cellsZ);
+    }
+
+    private static int clamp(int cell, int cells) {
+        return Math.max(0, Math.min(cells - 1, cell));
+    }
+
+    private int allocateOrder() {
+        if (freeIdCount > 0) {
+            return freeIds[--freeIdCount];
+        }
+        if (orderCapacityUsed == deadline.length) {
+            int size = orderCapacityUsed * 2;
+            deadline = Arrays.copyOf(deadline, size);
+            orderLocation = Arrays.copyOf(orderLocation, size);
+            heapIndex = Arrays.copyOf(heapIndex, size);
+            freeIds = Arrays.copyOf(freeIds, size);
+            heap = Arrays.copyOf(heap, size);
+        }
+        return orderCapacityUsed++;
+    }
+
+    private void releaseOrder(int order) {
+        locOrder[orderLocation[order]] = -1;
+        freeLocations++;
+        freeIds[freeIdCount++] = order;
+    }
+
+    private void heapPush(int order) {
+        heap[heapSize] = order;
+        heapIndex[order] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void heapRemove(int index) {
+        int last = heap[--heapSize];
+        if (index == heapSize) {
+            return;
+        }
+        heap[index] = last;
+        heapIndex[last] = index;
+        siftDown(index);
+        siftUp(heapIndex[last]);
+    }
+
+    private void siftUp(int index) {
+        int order = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (deadline[heap[parent]] <= deadline[order]) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heapIndex[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = order;
+        heapIndex[order] = index;
+    }
+
+    private void siftDown(int index) {
+        int order = heap[index];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && deadline[heap[child + 1]] < deadline[heap[child]]) {
+                child++;
+            }
+            if (deadline[heap[child]] >= deadline[order]) {
+                break;
+            }
+            heap[index] = heap[child];
+            heapIndex[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = order;
+        heapIndex[order] = index;
+    }
+}
@@ -0,0 +1,157 @@
+package mygame;
+
+import com.jme3.bullet.BulletAppState;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.math.Vector3f;
+
+/**
+ * Physics settings for the game: threading mode, broadphase, sub-steps and accuracy.
+ *
+ * The broadphase is a 32-bit axis sweep sized to the city's bounds, which suits
+ * a world made of many static boxes far better than the default dynamic AABB tree.
+ * Threading stays sequential, as in jME; --physics-threading parallel steps
+ * physics on a background thread while the frame renders.
+ */
+public class PhysicsConfig {
+
+    private BulletAppState.ThreadingType threadingType = BulletAppState.ThreadingType.SEQUENTIAL;
+    // The 16-bit sweep holds only 16384 bodies, two per building, which a grid
+    // of about 100 already exceeds
+    private PhysicsSpace.BroadphaseType broadphaseType = PhysicsSpace.BroadphaseType.AXIS_SWEEP_3_32;
+    private int maxSubSteps = 4;
+    private float accuracy = 1f / 60f;
+
+    // Room above the tallest building for jumps, and below the ground for falls
+    private static final float SKY_HEIGHT = 200f;
+    private static final float UNDERGROUND = 50f;
+
+    public BulletAppState.ThreadingType getThreadingType() {
+        return threadingType;
+    }
+
+    public void setThreadingType(BulletAppState.ThreadingType threadingType) {
+        this.threadingType = threadingType;
+    }
+
+    public PhysicsSpace.BroadphaseType getBroadphaseType() {
+        return broadphaseType;
+    }
+
+    public void setBroadphaseType(PhysicsSpace.BroadphaseType broadphaseType) {
+        this.broadphaseType = broadphaseType;
+    }
+
+    public int getMaxSubSteps() {
+        return maxSubSteps;
+    }
+
+    public void setMaxSubSteps(int maxSubSteps) {
+        this.maxSubSteps = maxSubSteps;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+    }
+
+    /**
+     * Parses a command line option, returning true if it was a physics option.
+     */
+    public boolean parseOption(String name, String value) {
+        if (name.equals("--physics-threading")) {
+            threadingType = BulletAppState.ThreadingType.valueOf(value.toUpperCase());
+        } else if (name.equals("--physics-broadphase")) {
+            broadphaseType = PhysicsSpace.BroadphaseType.valueOf(value.toUpperCase());
+        } else if (name.equals("--physics-substeps")) {
+            maxSubSteps = Integer.parseInt(value);
+        } else if (name.equals("--physics-accuracy")) {
+            accuracy = Float.parseFloat(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the app state. Must happen before it is attached, since threading
+     * and broadphase are fixed when the physics space is created.
+     *
+     * @param worldHalfExtent half the width of the playable city, ground included
+     */
+    public BulletAppState createAppState(float worldHalfExtent) {
+        BulletAppState bulletAppState = new BulletAppState(
+                new Vector3f(-worldHalfExtent, -UNDERGROUND, -worldHalfExtent),
+                new Vector3f(worldHalfExtent, SKY_HEIGHT, worldHalfExtent),
+                broadphaseType);
+        bulletAppState.setThreadingType(threadingType);
+        return bulletAppState;
+    }
+
+    /**
+     * Applies the stepping settings once the physics space exists.
+     */
+    public void applyTo(PhysicsSpace space) {
+        space.setMaxSubSteps(maxSubSteps);
+        space.setAccuracy(accuracy);
+    }
+
+    /**
+     * Measures how long each physics sub-step takes. Tick callbacks arrive on the
+     * physics thread in parallel mode, so results are published through volatiles.
+     */
+    public static class StepTimer implements PhysicsTickListener {
+        private long stepStart;
+        private volatile float averageMillis;
+        private volatile float maxMillis;
+        private volatile long steps;
+        private FrameProfiler.Histogram histogram;
+
+        @Override
+        public void prePhysicsTick(PhysicsSpace space, float tpf) {
+            stepStart = System.nanoTime();
+        }
+
+        @Override
+        public void physicsTick(PhysicsSpace space, float tpf) {
+            long nanos = System.nanoTime() - stepStart;
+            if (histogram != null) {
+                histogram.record(nanos);
+            }
+            float millis = nanos / 1000000f;
+            // Exponential moving average over roughly the last second of steps
+            averageMillis = steps == 0 ? millis : averageMillis + (millis - averageMillis) * 0.05f;
+            if (millis > maxMillis) {
+                maxMillis = millis;
+            }
+            steps++;
+        }
+
+        public float getAverageMillis() {
+            return averageMillis;
+        }
+
+        /**
+         * Returns the slowest step since the last call and starts a new window.
+         */
+        public float takeMaxMillis() {
+            float max = maxMillis;
+            maxMillis = 0;
+            return max;
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        /**
+         * Also records every step into a profiler histogram.
+         */
+        public void setHistogram(FrameProfiler.Histogram histogram) {
+            this.histogram = histogram;
+        }
+    }
+}
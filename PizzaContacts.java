@@ -0,0 +1,64 @@
+package mygame;
+
+import com.jme3.bullet.collision.PhysicsCollisionEvent;
+import com.jme3.scene.Spatial;
+
+/**
+ * What a contact reported by the physics space means for the delivery run:
+ * picking up a pizza waiting at the shop, or handing over the carried pizza
+ * at a delivery platform. Contacts are told apart by the names of the
+ * spatials involved; everything else, such as buildings and roofs, means
+ * nothing.
+ */
+public class PizzaContacts {
+
+    public enum Contact {
+        NONE,
+        PICKUP,
+        DELIVERY
+    }
+
+    // Only pizzas this close to the shop can be picked up
+    private static final float PICKUP_DISTANCE = 5f;
+
+    private final Spatial shop;
+    private Spatial pizza;
+
+    /**
+     * @param shop the pizza shop, or null if the city has none
+     */
+    public PizzaContacts(Spatial shop) {
+        this.shop = shop;
+    }
+
+    /**
+     * Classifies a contact. For {@link Contact#PICKUP}, {@link #getPizza()}
+     * returns the pizza touched.
+     */
+    public Contact check(PhysicsCollisionEvent event, boolean holdingPizza) {
+        String a = event.getNodeA().getName();
+        String b = event.getNodeB().getName();
+
+        // Pizza pickup, only near the pizza shop
+        if (!holdingPizza && shop != null && (a.startsWith("Pizza") || b.startsWith("Pizza"))) {
+            Spatial touched = a.startsWith("Pizza") ? event.getNodeA() : event.getNodeB();
+            if (touched.getWorldTranslation().distance(shop.getWorldTranslation()) < PICKUP_DISTANCE) {
+                pizza = touched;
+                return Contact.PICKUP;
+            }
+        }
+
+        // Pizza delivery, only with a pizza in hand
+        if (holdingPizza && (a.startsWith("DeliveryLocation") || b.startsWith("DeliveryLocation"))) {
+            return Contact.DELIVERY;
+        }
+        return Contact.NONE;
+    }
+
+    /**
+     * The pizza of the last {@link Contact#PICKUP}.
+     */
+    public Spatial getPizza() {
+        return pizza;
+    }
+}
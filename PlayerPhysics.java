@@ -0,0 +1,39 @@
+package mygame;
+
+import com.jme3.bullet.collision.shapes.CapsuleCollisionShape;
+import com.jme3.bullet.objects.PhysicsCharacter;
+
+/**
+ * The courier's body and movement settings. The game's player, the courier
+ * server's characters and the benchmarks all take them from here, so client
+ * prediction runs the same physics as the server.
+ */
+public final class PlayerPhysics {
+
+    static final float SPEED = 8f;
+    static final float JUMP_SPEED = 20f;
+    static final float GRAVITY = 30f;
+    static final float FALL_SPEED = 30f;
+
+    // Capsule radius and the distance between the centres of its caps
+    static final float RADIUS = 0.5f;
+    static final float HEIGHT = 1.8f;
+    static final float STEP_HEIGHT = 0.1f;
+
+    private PlayerPhysics() {
+    }
+
+    public static CapsuleCollisionShape createShape() {
+        return new CapsuleCollisionShape(RADIUS, HEIGHT, 1);
+    }
+
+    /**
+     * Applies jump, fall and gravity settings to a character created with
+     * {@link #createShape()} and {@link #STEP_HEIGHT}.
+     */
+    public static void configure(PhysicsCharacter character) {
+        character.setJumpSpeed(JUMP_SPEED);
+        character.setFallSpeed(FALL_SPEED);
+        character.setGravity(GRAVITY);
+    }
+}
@@ -0,0 +1,162 @@
+package mygame;
+
+import com.jme3.texture.Texture;
+
+/**
+ * Closed-loop control of rendering quality to hold a frame-time budget.
+ *
+ * Frame times are smoothed with an exponential moving average. When the
+ * average stays over budget the governor steps quality down a level, and
+ * when it stays well under budget for longer it steps back up. The gap
+ * between the two thresholds, the hold times and a settle period after every
+ * change keep it from flapping between levels; a level that proves too slow
+ * right after being reached is held off for twice as long next time.
+ */
+public class QualityGovernor {
+
+    /**
+     * One quality setting. Distances are fractions of the configured view
+     * and LOD distances.
+     */
+    public static class Level {
+        public final String name;
+        public final float viewScale;
+        public final float lodScale;
+        public final Texture.MinFilter minFilter;
+        public final int anisotropy;
+        public final float renderScale;
+
+        Level(String name, float viewScale, float lodScale, Texture.MinFilter minFilter,
+                int anisotropy, float renderScale) {
+            this.name = name;
+            this.viewScale = viewScale;
+            this.lodScale = lodScale;
+            this.minFilter = minFilter;
+            this.anisotropy = anisotropy;
+            this.renderScale = renderScale;
+        }
+    }
+
+    // Best first
+    static final Level[] LEVELS = {
+        new Level("Ultra", 1.0f, 1.0f, Texture.MinFilter.Trilinear, 8, 1.0f),
+        new Level("High", 0.8f, 0.75f, Texture.MinFilter.Trilinear, 2, 1.0f),
+        new Level("Medium", 0.65f, 0.5f, Texture.MinFilter.BilinearNearestMipMap, 1, 0.85f),
+        new Level("Low", 0.5f, 0.35f, Texture.MinFilter.NearestLinearMipMap, 1, 0.7f),
+        new Level("Lowest", 0.4f, 0.2f, Texture.MinFilter.NearestNearestMipMap, 1, 0.5f),
+    };
+
+    // Smoothing time constant for the frame time average, in seconds
+    private static final float SMOOTHING = 0.5f;
+
+    // Step down above budget * DOWN_RATIO, step up below budget * UP_RATIO
+    private static final float DOWN_RATIO = 1.1f;
+    private static final float UP_RATIO = 0.7f;
+
+    private static final float DOWN_HOLD = 0.5f;
+    private static final float UP_HOLD = 3f;
+    private static final float MAX_UP_HOLD = 48f;
+    private static final float SETTLE_TIME = 1f;
+    private static final float RETRY_WINDOW = 5f;
+
+    private final float budget;
+    private final boolean adaptive;
+    private int level;
+
+    private float smoothed;
+    private float overTime = 0;
+    private float underTime = 0;
+    private float settle = SETTLE_TIME;
+    private float sinceStepUp = Float.MAX_VALUE;
+
+    // Time under budget needed to step up to each level
+    private final float[] upHold = new float[LEVELS.length];
+
+    /**
+     * @param budgetMillis target frame time
+     * @param fixedLevel level to stay at, or -1 to adapt starting from the best level
+     */
+    public QualityGovernor(float budgetMillis, int fixedLevel) {
+        this.budget = budgetMillis / 1000f;
+        this.adaptive = fixedLevel < 0;
+        this.level = adaptive ? 0 : Math.min(fixedLevel, LEVELS.length - 1);
+        this.smoothed = budget;
+        for (int i = 0; i < upHold.length; i++) {
+            upHold[i] = UP_HOLD;
+        }
+    }
+
+    /**
+     * Feeds one frame's duration.
+     *
+     * @return true if the quality level changed
+     */
+    public boolean update(float frameSeconds) {
+        // Time-based smoothing, so the response does not depend on frame rate
+        float alpha = 1f - (float) Math.exp(-frameSeconds / SMOOTHING);
+        smoothed += (frameSeconds - smoothed) * alpha;
+        sinceStepUp += frameSeconds;
+        if (!adaptive) {
+            return false;
+        }
+
+        // Give the average time to reflect the current level before judging it
+        if (settle > 0) {
+            settle -= frameSeconds;
+            return false;
+        }
+
+        if (smoothed > budget * DOWN_RATIO) {
+            overTime += frameSeconds;
+            underTime = 0;
+        } else if (smoothed < budget * UP_RATIO) {
+            underTime += frameSeconds;
+            overTime = 0;
+        } else {
+            overTime = 0;
+            underTime = 0;
+        }
+
+        if (overTime >= DOWN_HOLD && level < LEVELS.length - 1) {
+            // This level did not hold up soon after being reached, so wait longer before trying it again
+            if (sinceStepUp < RETRY_WINDOW) {
+                upHold[level] = Math.min(upHold[level] * 2, MAX_UP_HOLD);
+            }
+            setLevel(level + 1);
+            return true;
+        }
+        if (level > 0 && underTime >= upHold[level - 1]) {
+            setLevel(level - 1);
+            sinceStepUp = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void setLevel(int newLevel) {
+        level = newLevel;
+        overTime = 0;
+        underTime = 0;
+        settle = SETTLE_TIME;
+    }
+
+    public Level getLevel() {
+        return LEVELS[level];
+    }
+
+    public int getLevelIndex() {
+        return level;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public float getSmoothedMillis() {
+        return smoothed * 1000f;
+    }
+
+    public float getBudgetMillis() {
+        return budget * 1000f;
+    }
+}
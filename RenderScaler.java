@@ -0,0 +1,118 @@
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.FrameBuffer.FrameBufferTarget;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.ui.Picture;
+
+/**
+ * Renders the scene at a fraction of the window resolution.
+ *
+ * Below full scale the scene is drawn by a pre-view into a smaller off-screen
+ * buffer with a copy of the main camera. The main view port then draws only
+ * that result, stretched over the window as a picture the scaler owns, so
+ * the HUD is drawn over it at full resolution and can be rebuilt freely.
+ */
+public class RenderScaler {
+
+    private final AssetManager assetManager;
+    private final RenderManager renderManager;
+    private final ViewPort mainView;
+    private final Camera mainCam;
+    private final Node scene;
+
+    private float scale = 1f;
+    private ViewPort scaledView;
+    private Camera scaledCam;
+    private Picture picture;
+
+    public RenderScaler(AssetManager assetManager, RenderManager renderManager, ViewPort mainView,
+            Node scene) {
+        this.assetManager = assetManager;
+        this.renderManager = renderManager;
+        this.mainView = mainView;
+        this.mainCam = mainView.getCamera();
+        this.scene = scene;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public void setScale(float scale) {
+        if (scale == this.scale) {
+            return;
+        }
+        this.scale = scale;
+        release();
+        if (scale < 1f) {
+            allocate();
+        }
+    }
+
+    /**
+     * Copies the main camera to the scaled one. Call once per frame after the
+     * camera has moved and before rendering.
+     */
+    public void update() {
+        if (scaledCam == null) {
+            return;
+        }
+        scaledCam.setLocation(mainCam.getLocation());
+        scaledCam.setRotation(mainCam.getRotation());
+        if (scaledCam.getFrustumFar() != mainCam.getFrustumFar()) {
+            scaledCam.setFrustumFar(mainCam.getFrustumFar());
+        }
+    }
+
+    private void allocate() {
+        int width = Math.max(1, Math.round(mainCam.getWidth() * scale));
+        int height = Math.max(1, Math.round(mainCam.getHeight() * scale));
+
+        scaledCam = mainCam.clone();
+        scaledCam.resize(width, height, false);
+
+        Texture2D color = new Texture2D(width, height, Image.Format.RGBA8);
+        color.setMinFilter(Texture.MinFilter.BilinearNoMipMaps);
+        color.setMagFilter(Texture.MagFilter.Bilinear);
+        FrameBuffer frameBuffer = new FrameBuffer(width, height, 1);
+        frameBuffer.setDepthTarget(FrameBufferTarget.newTarget(Image.Format.Depth));
+        frameBuffer.addColorTarget(FrameBufferTarget.newTarget(color));
+
+        scaledView = renderManager.createPreView("ScaledScene", scaledCam);
+        scaledView.setClearFlags(true, true, true);
+        scaledView.setBackgroundColor(mainView.getBackgroundColor());
+        scaledView.setOutputFrameBuffer(frameBuffer);
+        scaledView.attachScene(scene);
+        mainView.detachScene(scene);
+
+        // Replaces the scene in the main view; pictures sit in the GUI bucket,
+        // which every view port draws with an orthographic camera
+        picture = new Picture("ScaledScene");
+        picture.setTexture(assetManager, color, false);
+        picture.setWidth(mainCam.getWidth());
+        picture.setHeight(mainCam.getHeight());
+        picture.updateGeometricState();
+        mainView.attachScene(picture);
+    }
+
+    private void release() {
+        if (scaledView == null) {
+            return;
+        }
+        scaledView.detachScene(scene);
+        renderManager.removePreView(scaledView);
+        mainView.detachScene(picture);
+        mainView.attachScene(scene);
+        scaledView = null;
+        scaledCam = null;
+        picture = null;
+    }
+}
@@ -0,0 +1,289 @@
+package mygame;
+
+import com.jme3.math.FastMath;
+
+import java.util.Arrays;
+
+/**
+ * Reachability graph between rooftops.
+ *
+ * Each roof is a node; a directed edge a -> b exists when the player can get
+ * from roof a to roof b with a running jump, given the jump speed, run speed
+ * and gravity. Jumping up is limited by the jump apex, dropping down buys
+ * extra air time and so extra range. Edges are stored in compressed rows:
+ * the targets of node n are edgeTarget[edgeStart[n] .. edgeStart[n + 1]).
+ */
+public class RooftopGraph {
+
+    private int count = 0;
+    private float[] x = new float[64];
+    private float[] y = new float[64];
+    private float[] z = new float[64];
+    private float[] halfWidth = new float[64];
+    private float[] halfDepth = new float[64];
+
+    private int[] edgeStart = new int[1];
+    private int[] edgeTarget = new int[0];
+    private float[] edgeCost = new float[0];
+
+    // Spatial buckets over node centres, for building edges and position lookups
+    private float bucketSize;
+    private float minX;
+    private float minZ;
+    private int bucketsX;
+    private int bucketsZ;
+    private int[] bucketStart;
+    private int[] bucketNodes;
+
+    /**
+     * Adds a roof by the centre of its top surface and its half extents.
+     *
+     * @return the node id
+     */
+    public int addRoof(float centreX, float topY, float centreZ, float halfWidth, float halfDepth) {
+        if (count == x.length) {
+            int size = count * 2;
+            x = Arrays.copyOf(x, size);
+            y = Arrays.copyOf(y, size);
+            z = Arrays.copyOf(z, size);
+            this.halfWidth = Arrays.copyOf(this.halfWidth, size);
+            this.halfDepth = Arrays.copyOf(this.halfDepth, size);
+        }
+        x[count] = centreX;
+        y[count] = topY;
+        z[count] = centreZ;
+        this.halfWidth[count] = halfWidth;
+        this.halfDepth[count] = halfDepth;
+        return count++;
+    }
+
+    /**
+     * Computes the jump edges between all roofs added so far.
+     *
+     * @param jumpSpeed initial upward speed of a jump
+     * @param runSpeed horizontal speed while airborne
+     * @param gravity downward acceleration (positive)
+     * @param playerRadius radius of the player's collision capsule
+     */
+    public void build(float jumpSpeed, float runSpeed, float gravity, float playerRadius) {
+        // The longest possible jump drops from the highest roof to the lowest one
+        float minY = Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxHalfExtent = 0;
+        for (int i = 0; i < count; i++) {
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+            maxHalfExtent = Math.max(maxHalfExtent, Math.max(halfWidth[i], halfDepth[i]));
+        }
+        float maxGap = jumpRange(jumpSpeed, runSpeed, gravity, minY - maxY) + playerRadius * 2;
+        buildBuckets(maxGap + maxHalfExtent * 2);
+
+        int[] targets = new int[count * 8];
+        float[] costs = new float[count * 8];
+        int edges = 0;
+        edgeStart = new int[count + 1];
+
+        for (int a = 0; a < count; a++) {
+            edgeStart[a] = edges;
+            int bx = bucketX(x[a]);
+            int bz = bucketZ(z[a]);
+            for (int nx = Math.max(0, bx - 1); nx <= Math.min(bucketsX - 1, bx + 1); nx++) {
+                for (int nz = Math.max(0, bz - 1); nz <= Math.min(bucketsZ - 1, bz + 1); nz++) {
+                    int bucket = nx * bucketsZ + nz;
+                    for (int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+                        int b = bucketNodes[k];
+                        if (b == a) {
+                            continue;
+                        }
+                        // Edge-to-edge gap the player has to clear
+                        float gapX = Math.max(0, Math.abs(x[b] - x[a]) - halfWidth[a] - halfWidth[b]);
+                        float gapZ = Math.max(0, Math.abs(z[b] - z[a]) - halfDepth[a] - halfDepth[b]);
+                        float gap = FastMath.sqrt(gapX * gapX + gapZ * gapZ) + playerRadius * 2;
+                        if (gap > jumpRange(jumpSpeed, runSpeed, gravity, y[b] - y[a])) {
+                            continue;
+                        }
+                        if (edges == targets.length) {
+                            targets = Arrays.copyOf(targets, edges * 2);
+                            costs = Arrays.copyOf(costs, edges * 2);
+                        }
+                        targets[edges] = b;
+                        costs[edges] = horizontalDistance(a, b);
+                        edges++;
+                    }
+                }
+            }
+        }
+        edgeStart[count] = edges;
+        edgeTarget = Arrays.copyOf(targets, edges);
+        edgeCost = Arrays.copyOf(costs, edges);
+    }
+
+    /**
+     * Hash of the jump parameters given to {@link #build}, identifying a set
+     * of cached edges.
+     */
+    static int parameterHash(float jumpSpeed, float runSpeed, float gravity, float playerRadius) {
+        int hash = Float.floatToIntBits(jumpSpeed);
+        hash = hash * 31 + Float.floatToIntBits(runSpeed);
+        hash = hash * 31 + Float.floatToIntBits(gravity);
+        hash = hash * 31 + Float.floatToIntBits(playerRadius);
+        return hash;
+    }
+
+    /**
+     * Restores the edges of an earlier {@link #build} over the same roofs,
+     * skipping the jump tests. The arrays are used as they are, not copied.
+     */
+    void setEdges(int[] edgeStart, int[] edgeTarget, float[] edgeCost, float bucketSize) {
+        this.edgeStart = edgeStart;
+        this.edgeTarget = edgeTarget;
+        this.edgeCost = edgeCost;
+        buildBuckets(bucketSize);
+    }
+
+    int[] getEdgeStarts() {
+        return edgeStart;
+    }
+
+    int[] getEdgeTargets() {
+        return edgeTarget;
+    }
+
+    float[] getEdgeCosts() {
+        return edgeCost;
+    }
+
+    float getBucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * Horizontal distance covered by a running jump that lands dy higher
+     * (negative dy lands lower), or -1 if the target is above the jump apex.
+     */
+    static float jumpRange(float jumpSpeed, float runSpeed, float gravity, float dy) {
+        // Solve jumpSpeed * t - gravity * t^2 / 2 = dy for the later (falling) root
+        float discriminant = jumpSpeed * jumpSpeed - 2 * gravity * dy;
+        if (discriminant < 0) {
+            return -1;
+        }
+        float airTime = (jumpSpeed + FastMath.sqrt(discriminant)) / gravity;
+        return runSpeed * airTime;
+    }
+
+    /**
+     * Returns the roof under or nearest to the given position, or -1 if there are none.
+     */
+    public int findNode(float px, float pz) {
+        if (count == 0) {
+            return -1;
+        }
+        int bx = bucketX(px);
+        int bz = bucketZ(pz);
+        int best = -1;
+        float bestDist = Float.MAX_VALUE;
+        // Search outward until a ring of buckets produces a candidate
+        for (int r = 0; r < Math.max(bucketsX, bucketsZ) && best < 0; r++) {
+            for (int nx = bx - r; nx <= bx + r; nx++) {
+                for (int nz = bz - r; nz <= bz + r; nz++) {
+                    if (nx < 0 || nz < 0 || nx >= bucketsX || nz >= bucketsZ
+                            || (Math.abs(nx - bx) != r && Math.abs(nz - bz) != r)) {
+                        continue;
+                    }
+                    int bucket = nx * bucketsZ + nz;
+                    for (int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+                        int n = bucketNodes[k];
+                        float dx = Math.max(0, Math.abs(px - x[n]) - halfWidth[n]);
+                        float dz = Math.max(0, Math.abs(pz - z[n]) - halfDepth[n]);
+                        float dist = dx * dx + dz * dz;
+                        if (dist < bestDist) {
+                            bestDist = dist;
+                            best = n;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    public int getNodeCount() {
+        return count;
+    }
+
+    public int getEdgeCount() {
+        return edgeTarget.length;
+    }
+
+    int edgeStart(int node) {
+        return edgeStart[node];
+    }
+
+    int edgeEnd(int node) {
+        return edgeStart[node + 1];
+    }
+
+    int edgeTarget(int edge) {
+        return edgeTarget[edge];
+    }
+
+    float edgeCost(int edge) {
+        return edgeCost[edge];
+    }
+
+    public float getX(int node) {
+        return x[node];
+    }
+
+    public float getY(int node) {
+        return y[node];
+    }
+
+    public float getZ(int node) {
+        return z[node];
+    }
+
+    float horizontalDistance(int a, int b) {
+        float dx = x[b] - x[a];
+        float dz = z[b] - z[a];
+        return FastMath.sqrt(dx * dx + dz * dz);
+    }
+
+    private void buildBuckets(float size) {
+        bucketSize = Math.max(size, 1f);
+        minX = Float.MAX_VALUE;
+        minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        bucketsX = count == 0 ? 1 : (int) ((maxX - minX) / bucketSize) + 1;
+        bucketsZ = count == 0 ? 1 : (int) ((maxZ - minZ) / bucketSize) + 1;
+
+        // Counting sort of nodes by bucket
+        bucketStart = new int[bucketsX * bucketsZ + 1];
+        for (int i = 0; i < count; i++) {
+            bucketStart[bucketX(x[i]) * bucketsZ + bucketZ(z[i]) + 1]++;
+        }
+        for (int b = 0; b < bucketsX * bucketsZ; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] fill = Arrays.copyOf(bucketStart, bucketStart.length);
+        bucketNodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            bucketNodes[fill[bucketX(x[i]) * bucketsZ + bucketZ(z[i])]++] = i;
+        }
+    }
+
+    private int bucketX(float px) {
+        return Math.max(0, Math.min(bucketsX - 1, (int) ((px - minX) / bucketSize)));
+    }
+
+    private int bucketZ(float pz) {
+        return Math.max(0, Math.min(bucketsZ - 1, (int) ((pz - minZ) / bucketSize)));
+    }
+}
@@ -0,0 +1,169 @@
+package mygame;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A* routing over a {@link RooftopGraph}, with a cache of finished routes.
+ *
+ * The search state lives in arrays sized to the graph and reused between
+ * queries, with a generation stamp instead of clearing them, so a search
+ * allocates nothing but its result. Routes are cached by (from, to); the
+ * city is static, so a cached route never goes stale.
+ */
+public class RouteFinder {
+
+    private static final int[] NO_ROUTE = new int[0];
+    private static final int CACHE_SIZE = 4096;
+
+    private final RooftopGraph graph;
+
+    // Search state per node, valid only where stamp == generation
+    private final float[] costSoFar;
+    private final int[] cameFrom;
+    private final int[] stamp;
+    private final boolean[] closed;
+    private int generation = 0;
+
+    // Binary min-heap of nodes keyed by estimated total cost
+    private int[] heapNodes;
+    private float[] heapKeys;
+    private int heapSize;
+
+    private final Map<Long, int[]> cache = new LinkedHashMap<Long, int[]>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public RouteFinder(RooftopGraph graph) {
+        this.graph = graph;
+        int n = graph.getNodeCount();
+        costSoFar = new float[n];
+        cameFrom = new int[n];
+        stamp = new int[n];
+        closed = new boolean[n];
+        heapNodes = new int[Math.max(16, n)];
+        heapKeys = new float[heapNodes.length];
+    }
+
+    /**
+     * Returns the nodes from start to goal inclusive, or an empty array if the
+     * goal cannot be reached. The returned array is shared and must not be modified.
+     */
+    public int[] findRoute(int from, int to) {
+        if (from < 0 || to < 0) {
+            return NO_ROUTE;
+        }
+        Long key = ((long) from << 32) | (to & 0xFFFFFFFFL);
+        int[] route = cache.get(key);
+        if (route == null) {
+            route = search(from, to);
+            cache.put(key, route);
+        }
+        return route;
+    }
+
+    public void clearCache() {
+        cache.clear();
+    }
+
+    private int[] search(int from, int to) {
+        generation++;
+        heapSize = 0;
+        visit(from, 0, -1);
+        push(from, graph.horizontalDistance(from, to));
+
+        while (heapSize > 0) {
+            int node = pop();
+            if (closed[node]) {
+                continue;
+            }
+            if (node == to) {
+                return buildPath(to);
+            }
+            closed[node] = true;
+
+            for (int e = graph.edgeStart(node); e < graph.edgeEnd(node); e++) {
+                int next = graph.edgeTarget(e);
+                float cost = costSoFar[node] + graph.edgeCost(e);
+                if (stamp[next] != generation) {
+                    visit(next, cost, node);
+                } else if (closed[next] || cost >= costSoFar[next]) {
+                    continue;
+                } else {
+                    costSoFar[next] = cost;
+                    cameFrom[next] = node;
+                }
+                // Stale heap entries are skipped when popped instead of decreased in place
+                push(next, cost + graph.horizontalDistance(next, to));
+            }
+        }
+        return NO_ROUTE;
+    }
+
+    private void visit(int node, float cost, int parent) {
+        stamp[node] = generation;
+        closed[node] = false;
+        costSoFar[node] = cost;
+        cameFrom[node] = parent;
+    }
+
+    private int[] buildPath(int to) {
+        int length = 0;
+        for (int n = to; n >= 0; n = cameFrom[n]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int n = to; n >= 0; n = cameFrom[n]) {
+            path[--length] = n;
+        }
+        return path;
+    }
+
+    private void push(int node, float key) {
+        if (heapSize == heapNodes.length) {
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapNodes[i] = heapNodes[parent];
+            heapKeys[i] = heapKeys[parent];
+            i = parent;
+        }
+        heapNodes[i] = node;
+        heapKeys[i] = key;
+    }
+
+    private int pop() {
+        int top = heapNodes[0];
+        int node = heapNodes[--heapSize];
+        float key = heapKeys[heapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= key) {
+                break;
+            }
+            heapNodes[i] = heapNodes[child];
+            heapKeys[i] = heapKeys[child];
+            i = child;
+        }
+        heapNodes[i] = node;
+        heapKeys[i] = key;
+        return top;
+    }
+}
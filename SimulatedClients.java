@@ -0,0 +1,105 @@
+package mygame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load test for {@link CourierServer}: many simulated couriers on one machine.
+ *
+ * All clients run on a single thread with non-blocking sockets. Each one
+ * holds random movement keys for a second or so at a time and turns
+ * gradually, which keeps every courier moving and the snapshot deltas
+ * realistic. Throughput and decode failures are printed once a second.
+ */
+public class SimulatedClients {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = CourierServer.DEFAULT_PORT;
+        int clients = 100;
+        int inputRate = 30;
+        float duration = 30f;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--clients")) {
+                clients = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--input-rate")) {
+                inputRate = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--duration")) {
+                duration = Float.parseFloat(args[i + 1]);
+            }
+        }
+
+        List<CourierClient> group = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            group.add(new CourierClient(port, inputRate));
+        }
+        Random random = new Random(42);
+        float[] holdTime = new float[clients];
+        int[] turnRate = new int[clients];
+
+        long frameNanos = 1000000000L / (inputRate * 2);
+        long start = System.nanoTime();
+        long last = start;
+        long lastReport = start;
+        long lastSnapshots = 0;
+        long lastBytes = 0;
+        while ((last - start) / 1e9f < duration) {
+            long now = System.nanoTime();
+            float tpf = (now - last) / 1e9f;
+            last = now;
+
+            for (int i = 0; i < clients; i++) {
+                CourierClient client = group.get(i);
+                holdTime[i] -= tpf;
+                if (holdTime[i] <= 0) {
+                    // Random movement keys, jumping now and then
+                    holdTime[i] = 0.5f + random.nextFloat() * 1.5f;
+                    int buttons = 1 << random.nextInt(4);
+                    if (random.nextInt(4) == 0) {
+                        buttons |= NetProtocol.BUTTON_JUMP;
+                    }
+                    client.setButtons(buttons);
+                    turnRate[i] = random.nextInt(4001) - 2000;
+                }
+                client.setYaw(Math.round(i * 977 + (now - start) / 1e9f * turnRate[i]));
+                client.update(tpf);
+            }
+
+            if (now - lastReport >= 1000000000L) {
+                long snapshots = 0;
+                long bytes = 0;
+                long failures = 0;
+                int connected = 0;
+                for (CourierClient client : group) {
+                    snapshots += client.getSnapshotsReceived();
+                    bytes += client.getBytesReceived();
+                    failures += client.getDecodeFailures();
+                    if (client.isConnected()) {
+                        connected++;
+                    }
+                }
+                float seconds = (now - lastReport) / 1e9f;
+                long newSnapshots = snapshots - lastSnapshots;
+                System.out.println(String.format("%d/%d connected, %.0f snapshots/s, %.1f bytes/snapshot, %.1f kB/s, %d decode failures",
+                        connected, clients, newSnapshots / seconds,
+                        newSnapshots == 0 ? 0f : (bytes - lastBytes) / (float) newSnapshots,
+                        (bytes - lastBytes) / seconds / 1024f, failures));
+                lastSnapshots = snapshots;
+                lastBytes = bytes;
+                lastReport = now;
+            }
+
+            long sleep = frameNanos - (System.nanoTime() - now);
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+            }
+        }
+
+        for (CourierClient client : group) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package mygame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Quantized state of every courier at one server tick, sorted by courier id.
+ *
+ * Snapshots are sent as a delta against a baseline the client has
+ * acknowledged: only couriers with a changed field are written, each with a
+ * mask of the fields that changed and zig-zag varint differences for them.
+ * A courier standing still costs nothing, and a moving one a few bytes.
+ * Without a baseline every field is a difference from zero, so the same
+ * format carries full snapshots.
+ */
+public class Snapshot {
+
+    // Changed-field mask bits
+    private static final int FIELD_X = 1;
+    private static final int FIELD_Y = 2;
+    private static final int FIELD_Z = 4;
+    private static final int FIELD_YAW = 8;
+    private static final int FIELD_SCORE = 16;
+    private static final int FIELD_STATE = 32;
+
+    private static final Snapshot EMPTY = new Snapshot(0, 0);
+
+    int seq;
+    int count;
+    int[] ids;
+    int[] x;
+    int[] y;
+    int[] z;
+    int[] yaw;
+    int[] score;
+    // Bit 0: carrying a pizza; above it, target building + 1 (0 for none)
+    int[] state;
+
+    public Snapshot(int seq, int capacity) {
+        this.seq = seq;
+        ids = new int[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        z = new int[capacity];
+        yaw = new int[capacity];
+        score = new int[capacity];
+        state = new int[capacity];
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Appends a courier. Ids must be added in increasing order.
+     */
+    public void add(int id, int qx, int qy, int qz, int qyaw, int courierScore, int courierState) {
+        if (count == ids.length) {
+            grow(Math.max(8, count * 2));
+        }
+        ids[count] = id;
+        x[count] = qx;
+        y[count] = qy;
+        z[count] = qz;
+        yaw[count] = qyaw;
+        score[count] = courierScore;
+        state[count] = courierState;
+        count++;
+    }
+
+    /**
+     * Index of a courier, or -1 if it is not in this snapshot.
+     */
+    public int indexOf(int id) {
+        int index = Arrays.binarySearch(ids, 0, count, id);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Writes this snapshot as a delta against base, or in full if base is null.
+     * The packet type byte is written by the caller.
+     *
+     * @param yourInputSeq the last input of the receiving client applied before this tick
+     */
+    public void write(ByteBuffer out, Snapshot base, int yourId, int yourInputSeq) {
+        if (base == null) {
+            base = EMPTY;
+        }
+        NetProtocol.putVarInt(out, seq);
+        NetProtocol.putVarInt(out, base.seq);
+        NetProtocol.putVarInt(out, yourId);
+        NetProtocol.putVarInt(out, yourInputSeq);
+
+        // Changed and new couriers, as id gaps, terminated by a zero gap
+        int lastId = 0;
+        int b = 0;
+        for (int i = 0; i < count; i++) {
+            while (b < base.count && base.ids[b] < ids[i]) {
+                b++;
+            }
+            boolean inBase = b < base.count && base.ids[b] == ids[i];
+            int mask = 0;
+            int dx = x[i] - (inBase ? base.x[b] : 0);
+            int dy = y[i] - (inBase ? base.y[b] : 0);
+            int dz = z[i] - (inBase ? base.z[b] : 0);
+            int dyaw = InputRecorder.wrapAngle(yaw[i] - (inBase ? base.yaw[b] : 0));
+            int dscore = score[i] - (inBase ? base.score[b] : 0);
+            int dstate = state[i] - (inBase ? base.state[b] : 0);
+            if (dx != 0) mask |= FIELD_X;
+            if (dy != 0) mask |= FIELD_Y;
+            if (dz != 0) mask |= FIELD_Z;
+            if (dyaw != 0) mask |= FIELD_YAW;
+            if (dscore != 0) mask |= FIELD_SCORE;
+            if (dstate != 0) mask |= FIELD_STATE;
+
+            // A new courier is always written, even if all its fields are zero
+            if (mask == 0 && inBase) {
+                continue;
+            }
+            NetProtocol.putVarInt(out, ids[i] - lastId);
+            lastId = ids[i];
+            out.put((byte) mask);
+            if ((mask & FIELD_X) != 0) NetProtocol.putSigned(out, dx);
+            if ((mask & FIELD_Y) != 0) NetProtocol.putSigned(out, dy);
+            if ((mask & FIELD_Z) != 0) NetProtocol.putSigned(out, dz);
+            if ((mask & FIELD_YAW) != 0) NetProtocol.putSigned(out, dyaw);
+            if ((mask & FIELD_SCORE) != 0) NetProtocol.putSigned(out, dscore);
+            if ((mask & FIELD_STATE) != 0) NetProtocol.putSigned(out, dstate);
+        }
+        NetProtocol.putVarInt(out, 0);
+
+        // Couriers that left since the baseline, in the same form
+        lastId = 0;
+        int i = 0;
+        for (b = 0; b < base.count; b++) {
+            while (i < count && ids[i] < base.ids[b]) {
+                i++;
+            }
+            if (i >= count || ids[i] != base.ids[b]) {
+                NetProtocol.putVarInt(out, base.ids[b] - lastId);
+                lastId = base.ids[b];
+            }
+        }
+        NetProtocol.putVarInt(out, 0);
+    }
+
+    /**
+     * Reads the baseline sequence number of a snapshot packet without consuming it,
+     * so the caller can look the baseline up before decoding.
+     */
+    static int peekBaseSeq(ByteBuffer in) {
+        ByteBuffer copy = in.duplicate();
+        NetProtocol.getVarInt(copy);
+        return NetProtocol.getVarInt(copy);
+    }
+
+    /**
+     * Decodes a snapshot written by {@link #write}. The base must be the
+     * snapshot it was encoded against, or null for a full snapshot.
+     *
+     * @param you receives the id of the receiving client's own courier and
+     *            the sequence number of its last input the server applied
+     */
+    public static Snapshot read(ByteBuffer in, Snapshot base, int[] you) {
+        if (base == null) {
+            base = EMPTY;
+        }
+        int seq = NetProtocol.getVarInt(in);
+        int baseSeq = NetProtocol.getVarInt(in);
+        if (baseSeq != base.seq) {
+            throw new IllegalArgumentException("Snapshot " + seq + " needs baseline " + baseSeq
+                    + ", have " + base.seq);
+        }
+        you[0] = NetProtocol.getVarInt(in);
+        you[1] = NetProtocol.getVarInt(in);
+
+        // Collect the changed couriers; they arrive in id order
+        Snapshot changes = new Snapshot(seq, 16);
+        int id = 0;
+        for (int gap = NetProtocol.getVarInt(in); gap != 0; gap = NetProtocol.getVarInt(in)) {
+            id += gap;
+            int mask = in.get();
+            int b = base.indexOf(id);
+            int qx = b >= 0 ? base.x[b] : 0;
+            int qy = b >= 0 ? base.y[b] : 0;
+            int qz = b >= 0 ? base.z[b] : 0;
+            int qyaw = b >= 0 ? base.yaw[b] : 0;
+            int qscore = b >= 0 ? base.score[b] : 0;
+            int qstate = b >= 0 ? base.state[b] : 0;
+            if ((mask & FIELD_X) != 0) qx += NetProtocol.getSigned(in);
+            if ((mask & FIELD_Y) != 0) qy += NetProtocol.getSigned(in);
+            if ((mask & FIELD_Z) != 0) qz += NetProtocol.getSigned(in);
+            if ((mask & FIELD_YAW) != 0) qyaw = (qyaw + NetProtocol.getSigned(in)) & (InputRecorder.ANGLE_STEPS - 1);
+            if ((mask & FIELD_SCORE) != 0) qscore += NetProtocol.getSigned(in);
+            if ((mask & FIELD_STATE) != 0) qstate += NetProtocol.getSigned(in);
+            changes.add(id, qx, qy, qz, qyaw, qscore, qstate);
+        }
+
+        int[] removed = new int[4];
+        int removedCount = 0;
+        id = 0;
+        for (int gap = NetProtocol.getVarInt(in); gap != 0; gap = NetProtocol.getVarInt(in)) {
+            id += gap;
+            if (removedCount == removed.length) {
+                removed = Arrays.copyOf(removed, removedCount * 2);
+            }
+            removed[removedCount++] = id;
+        }
+
+        // Merge: changed couriers replace or join the baseline, removed ones drop out
+        Snapshot result = new Snapshot(seq, base.count + changes.count);
+        int c = 0;
+        int r = 0;
+        for (int b = 0; b <= base.count; b++) {
+            int baseId = b < base.count ? base.ids[b] : Integer.MAX_VALUE;
+            while (c < changes.count && changes.ids[c] < baseId) {
+                result.copyFrom(changes, c++);
+            }
+            if (b == base.count) {
+                break;
+            }
+            if (c < changes.count && changes.ids[c] == baseId) {
+                result.copyFrom(changes, c++);
+                continue;
+            }
+            while (r < removedCount && removed[r] < baseId) {
+                r++;
+            }
+            if (r < removedCount && removed[r] == baseId) {
+                continue;
+            }
+            result.copyFrom(base, b);
+        }
+        return result;
+    }
+
+    private void copyFrom(Snapshot other, int i) {
+        add(other.ids[i], other.x[i], other.y[i], other.z[i], other.yaw[i], other.score[i], other.state[i]);
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        yaw = Arrays.copyOf(yaw, capacity);
+        score = Arrays.copyOf(score, capacity);
+        state = Arrays.copyOf(state, capacity);
+    }
+}
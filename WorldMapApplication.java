@@ -5,23 +5,29 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.InputStream;
 
 public class WorldMapApplication {
     
-    // City class to hold city data
+    // City class to hold city data; x and y are map pixels projected from lat/lon
     static class City {
         String name;
+        double lat, lon;
         int x, y;
         String url;
         
-        public City(String name, int x, int y, String url) {
+        public City(String name, double lat, double lon, String url) {
             this.name = name;
-            this.x = x;
-            this.y = y;
+            this.lat = lat;
+            this.lon = lon;
             this.url = url;
         }
     }
@@ -29,12 +35,35 @@ public class WorldMapApplication {
     private JFrame frame;
     private JPanel mapPanel;
     private ArrayList<City> cities = new ArrayList<>();
+    private Map<String, Integer> cityIndex = new HashMap<>();
+    private MapProjection projection;
     private BufferedImage worldMapImage;
     private String hoveredCity = null;
     
+    // Heatmap of city density, drawn over the map; bumping citiesVersion
+    // after changing the city list makes it recompute
+    private static final int MARKER_LIMIT = 200; // Beyond this, markers only hide the heatmap
+    private DensityHeatmap heatmap = new DensityHeatmap(6);
+    private int citiesVersion = 0;
+    private int positionsVersion = -1;
+    private int[] cityXs = new int[0];
+    private int[] cityYs = new int[0];
+    
     public WorldMapApplication() {
-        // Initialize the list of cities with coordinates and URLs
-        initializeCities();
+        this(new MapProjection(MapProjection.Type.EQUIRECTANGULAR, 1200, 700), null);
+    }
+    
+    public WorldMapApplication(MapProjection projection, List<City> loaded) {
+        this.projection = projection;
+        
+        // Use the cities from a file if given, otherwise the built-in list
+        if (loaded != null) {
+            cities.addAll(loaded);
+            citiesVersion++;
+        } else {
+            initializeCities();
+        }
+        rebuildCityIndex();
         
         // Create main frame
         frame = new JFrame("Interactive World Map");
@@ -105,15 +134,26 @@ public class WorldMapApplication {
                     g.drawImage(worldMapImage, 0, 0, this.getWidth(), this.getHeight(), this);
                 }
                 
+                // Draw the density heatmap, cached until the cities or panel size change
+                updateCityPositions();
+                BufferedImage density = heatmap.getImage(cityXs, cityYs, cityXs.length, citiesVersion,
+                        1200, 700, getWidth(), getHeight());
+                Graphics2D g2 = (Graphics2D) g;
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2.drawImage(density, 0, 0, getWidth(), getHeight(), this);
+                
                 // Draw city markers
+                boolean markers = cities.size() <= MARKER_LIMIT;
                 for (City city : cities) {
                     // Convert the city coordinates to the panel scale
                     int x = (int) (city.x * getWidth() / 1200.0);
                     int y = (int) (city.y * getHeight() / 700.0);
                     
                     // Draw city marker (red circle)
-                    g.setColor(Color.RED);
-                    g.fillOval(x - 6, y - 6, 12, 12);
+                    if (markers) {
+                        g.setColor(Color.RED);
+                        g.fillOval(x - 6, y - 6, 12, 12);
+                    }
                     
                     // Draw city name if hovered
                     if (city.name.equals(hoveredCity)) {
@@ -166,22 +206,86 @@ public class WorldMapApplication {
     }
     
     private void initializeCities() {
-        // Add city data: name, x-coordinate, y-coordinate, URL
-        cities.add(new City("New York", 300, 220, "https://www.nyc.gov"));
-        cities.add(new City("London", 550, 200, "https://www.london.gov.uk"));
-        cities.add(new City("Tokyo", 900, 250, "https://www.metro.tokyo.lg.jp/english/index.html"));
-        cities.add(new City("Paris", 550, 220, "https://www.paris.fr/en"));
-        cities.add(new City("Sydney", 950, 480, "https://www.sydney.com"));
-        cities.add(new City("Rio de Janeiro", 380, 420, "https://www.rio.rj.gov.br"));
-        cities.add(new City("Cairo", 600, 300, "https://www.cairo.gov.eg"));
-        cities.add(new City("Mumbai", 700, 330, "https://www.mumbai.org.uk"));
-        cities.add(new City("Moscow", 650, 180, "https://www.mos.ru/en"));
-        cities.add(new City("Beijing", 830, 240, "http://english.beijing.gov.cn"));
-        cities.add(new City("Los Angeles", 180, 250, "https://www.lacity.org"));
-        cities.add(new City("Cape Town", 580, 480, "https://www.capetown.gov.za"));
-        cities.add(new City("Mexico City", 230, 320, "https://www.cdmx.gob.mx"));
-        cities.add(new City("Berlin", 580, 200, "https://www.berlin.de/en"));
-        cities.add(new City("Singapore", 780, 380, "https://www.visitsingapore.com"));
+        // Add city data: name, latitude, longitude, URL
+        cities.add(new City("New York", 40.71, -74.01, "https://www.nyc.gov"));
+        cities.add(new City("London", 51.51, -0.13, "https://www.london.gov.uk"));
+        cities.add(new City("Tokyo", 35.68, 139.65, "https://www.metro.tokyo.lg.jp/english/index.html"));
+        cities.add(new City("Paris", 48.86, 2.35, "https://www.paris.fr/en"));
+        cities.add(new City("Sydney", -33.87, 151.21, "https://www.sydney.com"));
+        cities.add(new City("Rio de Janeiro", -22.91, -43.17, "https://www.rio.rj.gov.br"));
+        cities.add(new City("Cairo", 30.04, 31.24, "https://www.cairo.gov.eg"));
+        cities.add(new City("Mumbai", 19.08, 72.88, "https://www.mumbai.org.uk"));
+        cities.add(new City("Moscow", 55.76, 37.62, "https://www.mos.ru/en"));
+        cities.add(new City("Beijing", 39.90, 116.41, "http://english.beijing.gov.cn"));
+        cities.add(new City("Los Angeles", 34.05, -118.24, "https://www.lacity.org"));
+        cities.add(new City("Cape Town", -33.92, 18.42, "https://www.capetown.gov.za"));
+        cities.add(new City("Mexico City", 19.43, -99.13, "https://www.cdmx.gob.mx"));
+        cities.add(new City("Berlin", 52.52, 13.41, "https://www.berlin.de/en"));
+        cities.add(new City("Singapore", 1.35, 103.82, "https://www.visitsingapore.com"));
+        projectAll(cities, projection);
+        citiesVersion++;
+    }
+    
+    // Projects a batch of cities to map pixels in one pass over flat arrays
+    static void projectAll(List<City> list, MapProjection projection) {
+        int n = list.size();
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int i = 0; i < n; i++) {
+            lats[i] = list.get(i).lat;
+            lons[i] = list.get(i).lon;
+        }
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        projection.project(lats, lons, n, xs, ys);
+        for (int i = 0; i < n; i++) {
+            list.get(i).x = xs[i];
+            list.get(i).y = ys[i];
+        }
+    }
+    
+    private void rebuildCityIndex() {
+        cityIndex.clear();
+        for (int i = 0; i < cities.size(); i++) {
+            cityIndex.put(cities.get(i).name, i);
+        }
+    }
+    
+    // Applies a reload from the watched file; runs on the EDT
+    void applyDiff(CityWatcher.Diff diff) {
+        if (!diff.removed.isEmpty()) {
+            cities.removeIf(city -> diff.removed.contains(city.name));
+            rebuildCityIndex();
+        }
+        for (City city : diff.changed) {
+            Integer index = cityIndex.get(city.name);
+            if (index != null) {
+                cities.set(index, city);
+            }
+        }
+        for (City city : diff.added) {
+            cityIndex.put(city.name, cities.size());
+            cities.add(city);
+        }
+        if (diff.removed.contains(hoveredCity)) {
+            hoveredCity = null;
+        }
+        citiesVersion++;
+        mapPanel.repaint();
+    }
+    
+    private void updateCityPositions() {
+        // Flat coordinate arrays for the heatmap, rebuilt only when the cities change
+        if (positionsVersion == citiesVersion) {
+            return;
+        }
+        cityXs = new int[cities.size()];
+        cityYs = new int[cities.size()];
+        for (int i = 0; i < cities.size(); i++) {
+            cityXs[i] = cities.get(i).x;
+            cityYs[i] = cities.get(i).y;
+        }
+        positionsVersion = citiesVersion;
     }
     
     private void checkHover(int mouseX, int mouseY) {
@@ -233,6 +337,21 @@ public class WorldMapApplication {
     }
     
     public static void main(String[] args) {
+        // --cities <file> loads name,latitude,longitude,url lines; --watch reloads on save
+        Path citiesFile = null;
+        boolean watch = false;
+        MapProjection.Type type = MapProjection.Type.EQUIRECTANGULAR;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cities") && i + 1 < args.length) {
+                citiesFile = Paths.get(args[++i]);
+            } else if (args[i].equals("--projection") && i + 1 < args.length) {
+                type = args[++i].equals("mercator") ? MapProjection.Type.WEB_MERCATOR
+                        : MapProjection.Type.EQUIRECTANGULAR;
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            }
+        }
+        
         // Set look and feel to system default
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -240,10 +359,33 @@ public class WorldMapApplication {
             e.printStackTrace();
         }
         
+        // Read the city file here rather than on the Event Dispatch Thread
+        MapProjection projection = new MapProjection(type, 1200, 700);
+        CityWatcher watcher = null;
+        List<City> loaded = null;
+        if (citiesFile != null) {
+            watcher = new CityWatcher(citiesFile, projection);
+            try {
+                loaded = watcher.load();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not load " + citiesFile + ": " + e.getMessage());
+                watcher = null;
+            }
+        }
+        
         // Start the application on the Event Dispatch Thread
+        final List<City> initial = loaded;
+        final CityWatcher cityWatcher = watch ? watcher : null;
         SwingUtilities.invokeLater(() -> {
-            WorldMapApplication app = new WorldMapApplication();
+            WorldMapApplication app = new WorldMapApplication(projection, initial);
             app.show();
+            if (cityWatcher != null) {
+                try {
+                    cityWatcher.start(app::applyDiff);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         });
     }
-}
\ No newline at end of file
+}
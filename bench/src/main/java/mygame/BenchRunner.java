@@ -0,0 +1,29 @@
+package mygame;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its
+ * allocation rate (gc.alloc.rate.norm is bytes per operation). Results are
+ * also written to bench-results.json for comparing runs.
+ *
+ * An optional argument is a regex selecting benchmarks, e.g. "CityBenchmark".
+ * Other JMH options are available through org.openjdk.jmh.Main.
+ */
+public class BenchRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "mygame\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("bench-results.json")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,67 @@
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bullet.PhysicsSpace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * City creation at increasing grid sizes: the game's whole {@link CityBuilder}
+ * run with ground, render nodes, physics bodies and the rooftop graph. Each
+ * build gets a fresh physics space, set up outside the timed call.
+ * {@link LayoutBenchmark} times the layout generator alone.
+ *
+ * The 16-bit axis sweep holds 16384 bodies, which a grid of about 90 already
+ * exceeds, so the larger grids need the 32-bit broadphase.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// jbullet's axis sweep classes carry stack maps that current JVMs reject
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UnlockDiagnosticVMOptions", "-XX:-BytecodeVerificationRemote"})
+public class CityBenchmark {
+
+    @Param({"5", "10", "25", "50", "100", "200"})
+    public int gridSize;
+
+    @Param({"AXIS_SWEEP_3_32"})
+    public PhysicsSpace.BroadphaseType broadphase;
+
+    private AssetManager assetManager;
+    private PhysicsSpace space;
+
+    @Setup(Level.Trial)
+    public void loadAssets() {
+        assetManager = CityFixture.createAssetManager();
+    }
+
+    @Setup(Level.Invocation)
+    public void createSpace() {
+        space = CityFixture.createSpace(gridSize, broadphase);
+    }
+
+    @TearDown(Level.Invocation)
+    public void destroySpace() {
+        space.destroy();
+    }
+
+    @Benchmark
+    public CityFixture createCity() {
+        return CityFixture.build(assetManager, space, gridSize);
+    }
+}
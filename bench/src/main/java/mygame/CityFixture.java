@@ -0,0 +1,92 @@
+package mygame;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.control.CharacterControl;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+import com.jme3.system.JmeSystem;
+
+/**
+ * Builds a city with the game's {@link CityBuilder}, without a running
+ * application: ground, instanced buildings, occlusion grid, static box
+ * bodies and the rooftop graph. Only the ground texture is left out, as it
+ * does not change with the grid size.
+ */
+public class CityFixture {
+
+    static final long SEED = 1234;
+    static final float SPACING = 25f;
+
+    // View settings from PizzaParkour
+    static final float LOD_DISTANCE = 120f;
+    static final float VIEW_DISTANCE = 400f;
+
+    final CityLayout layout;
+    final CityBuilder builder;
+    final PhysicsSpace space;
+
+    private CityFixture(CityLayout layout, CityBuilder builder, PhysicsSpace space) {
+        this.layout = layout;
+        this.builder = builder;
+        this.space = space;
+    }
+
+    static AssetManager createAssetManager() {
+        return JmeSystem.newAssetManager(
+                Thread.currentThread().getContextClassLoader().getResource("com/jme3/asset/Desktop.cfg"));
+    }
+
+    /**
+     * Creates a physics space sized like the game's for a grid.
+     */
+    static PhysicsSpace createSpace(int gridSize, PhysicsSpace.BroadphaseType broadphase) {
+        float extent = CityBuilder.worldHalfExtent(gridSize, SPACING);
+        PhysicsSpace space = new PhysicsSpace(new Vector3f(-extent, -50f, -extent),
+                new Vector3f(extent, 200f, extent), broadphase);
+        new PhysicsConfig().applyTo(space);
+        space.setGravity(new Vector3f(0, -PlayerPhysics.GRAVITY, 0));
+        return space;
+    }
+
+    /**
+     * Generates (uncached) and builds a whole city into a physics space.
+     */
+    static CityFixture build(AssetManager assetManager, PhysicsSpace space, int gridSize) {
+        CityLayout layout = CityLayout.generate(SEED, gridSize, SPACING);
+        // Lit as in the game's setupLighting
+        LightBaker lightBaker = new LightBaker(new Vector3f(-0.5f, -0.5f, -0.5f),
+                ColorRGBA.White.mult(1.3f), ColorRGBA.White.mult(0.3f));
+        CityBuilder builder = new CityBuilder(assetManager, space, lightBaker, layout, null,
+                LOD_DISTANCE, VIEW_DISTANCE);
+        while (!builder.isComplete()) {
+            builder.buildRow();
+        }
+        builder.finish(PlayerPhysics.JUMP_SPEED, PlayerPhysics.SPEED, PlayerPhysics.GRAVITY, PlayerPhysics.RADIUS);
+        return new CityFixture(layout, builder, space);
+    }
+
+    /**
+     * Adds the player capsule as createPlayer does, above the shop roof or the
+     * first building when the shop cell is empty.
+     */
+    CharacterControl addPlayer() {
+        CharacterControl player = new CharacterControl(PlayerPhysics.createShape(), PlayerPhysics.STEP_HEIGHT);
+        PlayerPhysics.configure(player);
+        player.setPhysicsLocation(spawnPoint());
+        space.add(player);
+        return player;
+    }
+
+    Vector3f spawnPoint() {
+        Vector3f shop = builder.getShopLocation();
+        if (shop != null) {
+            return shop.add(0, 3, 0);
+        }
+        RooftopGraph roofs = builder.getRooftopGraph();
+        if (layout.count > 0) {
+            return new Vector3f(roofs.getX(0), roofs.getY(0) + 3, roofs.getZ(0));
+        }
+        return new Vector3f(0, 10, 0);
+    }
+}
@@ -0,0 +1,112 @@
+package mygame;
+
+import com.bulletphysics.collision.narrowphase.ManifoldPoint;
+import com.jme3.bullet.collision.PhysicsCollisionEvent;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.shape.Box;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the game's contact rules, {@link PizzaContacts}, over a
+ * synthetic contact stream.
+ *
+ * The stream is mostly the player touching building bodies and roofs, with
+ * a share of pizza and delivery contacts that take the rules' other
+ * branches. Pizzas sit away from the shop and no pizza is held, so every
+ * contact is checked but none leads to a pickup or delivery, and the same
+ * stream can be replayed indefinitely.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollisionBenchmark {
+
+    private static final int EVENTS = 4096;
+
+    // Percentage of contacts with pizzas and delivery roofs; the rest are buildings
+    @Param({"0", "10", "50"})
+    public int specialPercent;
+
+    private PizzaContacts contacts;
+    private PhysicsCollisionEvent[] events;
+
+    @Setup(Level.Trial)
+    public void createStream() {
+        // Set up as the game's finishCity does, with the shop at the origin
+        Node shop = new Node("PizzaShop");
+        shop.updateGeometricState();
+        contacts = new PizzaContacts(shop);
+
+        PhysicsRigidBody player = body(new Node("Player"));
+        Box box = new Box(1, 1, 1);
+        PhysicsRigidBody[] buildings = new PhysicsRigidBody[64];
+        for (int i = 0; i < buildings.length; i++) {
+            buildings[i] = body(new Geometry(i % 2 == 0 ? "Building" : "Roof", box));
+        }
+        Geometry pizza = new Geometry("Pizza", box);
+        pizza.setLocalTranslation(20, 0, 0);
+        PhysicsRigidBody pizzaBody = body(pizza);
+        PhysicsRigidBody delivery = body(new Node("DeliveryLocation"));
+
+        Random random = new Random(42);
+        events = new PhysicsCollisionEvent[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            PhysicsRigidBody other;
+            if (random.nextInt(100) < specialPercent) {
+                other = random.nextBoolean() ? pizzaBody : delivery;
+            } else {
+                other = buildings[random.nextInt(buildings.length)];
+            }
+            // Either order, as Bullet reports pairs
+            boolean swap = random.nextBoolean();
+            events[i] = event(swap ? other : player, swap ? player : other);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int dispatch() {
+        int matched = 0;
+        for (PhysicsCollisionEvent event : events) {
+            if (contacts.check(event, false) != PizzaContacts.Contact.NONE) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static PhysicsRigidBody body(Spatial spatial) {
+        spatial.updateGeometricState();
+        PhysicsRigidBody body = new PhysicsRigidBody(new BoxCollisionShape(new Vector3f(1, 1, 1)), 0);
+        body.setUserObject(spatial);
+        return body;
+    }
+
+    private static PhysicsCollisionEvent event(PhysicsCollisionObject a, PhysicsCollisionObject b) {
+        return new PhysicsCollisionEvent(PhysicsCollisionEvent.TYPE_ADDED, a, b, new ManifoldPoint());
+    }
+}
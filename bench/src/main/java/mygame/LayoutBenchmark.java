@@ -0,0 +1,37 @@
+package mygame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The city layout generator alone, at the grid sizes of {@link CityBenchmark}.
+ *
+ * A small grid generates in microseconds, so this has no per-invocation
+ * setup, whose own overhead would swamp the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+    @Param({"5", "10", "25", "50", "100", "200"})
+    public int gridSize;
+
+    @Benchmark
+    public CityLayout generateLayout() {
+        return CityLayout.generate(CityFixture.SEED, gridSize, CityFixture.SPACING);
+    }
+}
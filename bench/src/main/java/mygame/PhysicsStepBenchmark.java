@@ -0,0 +1,74 @@
+package mygame;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.control.CharacterControl;
+import com.jme3.math.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 60 Hz physics frame of a headless space holding a city's static bodies
+ * and the running player capsule.
+ *
+ * The player runs along x at game speed and is put back on its spawn roof
+ * every iteration, so every iteration sees the same mix of running,
+ * falling and landing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// jbullet's axis sweep classes carry stack maps that current JVMs reject
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UnlockDiagnosticVMOptions", "-XX:-BytecodeVerificationRemote"})
+public class PhysicsStepBenchmark {
+
+    @Param({"5", "25", "100", "200"})
+    public int gridSize;
+
+    @Param({"AXIS_SWEEP_3_32"})
+    public PhysicsSpace.BroadphaseType broadphase;
+
+    private PhysicsSpace space;
+    private CityFixture city;
+    private CharacterControl player;
+
+    @Setup(Level.Trial)
+    public void buildCity() {
+        space = CityFixture.createSpace(gridSize, broadphase);
+        city = CityFixture.build(CityFixture.createAssetManager(), space, gridSize);
+        player = city.addPlayer();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPlayer() {
+        player.setPhysicsLocation(city.spawnPoint());
+        // Same walk vector updatePlayerMovement sets for a held key
+        player.setWalkDirection(new Vector3f(PlayerPhysics.SPEED, 0, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void destroySpace() {
+        space.destroy();
+    }
+
+    @Benchmark
+    public Vector3f step() {
+        space.update(1f / 60f);
+        space.distributeEvents();
+        return player.getPhysicsLocation();
+    }
+}
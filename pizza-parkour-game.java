@@ -1,35 +1,43 @@
 package mygame;
 
 import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.app.state.AppState;
+import com.jme3.asset.AssetKey;
 import com.jme3.asset.TextureKey;
 import com.jme3.bullet.BulletAppState;
 import com.jme3.bullet.collision.PhysicsCollisionEvent;
 import com.jme3.bullet.collision.PhysicsCollisionListener;
 import com.jme3.bullet.collision.shapes.BoxCollisionShape;
-import com.jme3.bullet.collision.shapes.CapsuleCollisionShape;
 import com.jme3.bullet.control.CharacterControl;
 import com.jme3.bullet.control.RigidBodyControl;
 import com.jme3.font.BitmapText;
 import com.jme3.input.KeyInput;
 import com.jme3.input.controls.ActionListener;
 import com.jme3.input.controls.KeyTrigger;
-import com.jme3.light.AmbientLight;
-import com.jme3.light.DirectionalLight;
 import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.RenderManager;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
+import com.jme3.scene.Spatial.CullHint;
 import com.jme3.scene.shape.Box;
 import com.jme3.scene.shape.Cylinder;
 import com.jme3.system.AppSettings;
 import com.jme3.texture.Texture;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -37,19 +45,26 @@ import java.util.Random;
  * The player controls a pizza delivery person jumping across rooftops,
  * collecting pizzas from a central location and delivering them to customers.
  */
-public class PizzaParkour extends SimpleApplication implements ActionListener, PhysicsCollisionListener {
+public class PizzaParkour extends SimpleApplication
+        implements ActionListener, PhysicsCollisionListener, OrderScheduler.Listener {
 
     // Physics
     private BulletAppState bulletAppState;
+    private PhysicsConfig physicsConfig = new PhysicsConfig();
+    private PhysicsConfig.StepTimer physicsTimer = new PhysicsConfig.StepTimer();
+    private float physicsStatsTimer = 0;
     private CharacterControl player;
     private Vector3f walkDirection = new Vector3f();
     private boolean left = false, right = false, up = false, down = false, jump = false;
-    private float playerSpeed = 8f;
-    private float jumpSpeed = 20f;
     
     // Game objects
     private Node cityNode;
+    private BuildingRenderer buildingRenderer;
+    private RooftopGraph rooftopGraph;
+    private RouteFinder routeFinder;
+    private int shopNode = -1;
     private Spatial pizzaShop;
+    private PizzaContacts pizzaContacts;
     private List<Spatial> deliveryLocations = new ArrayList<>();
     private List<Spatial> activeDeliveries = new ArrayList<>();
     private List<Spatial> activePizzas = new ArrayList<>();
@@ -63,15 +78,101 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
     private float deliveryTimeLimit = 60; // 1 minute per delivery
     private float currentDeliveryTime = 0;
     
+    // Rush hour: every free roof takes orders, each with its own deadline
+    private boolean rushHour = false;
+    private float orderRate = 4f; // New orders per second
+    private OrderScheduler orderScheduler;
+    private DeliveryMarkers deliveryMarkers;
+    private Random orderRandom;
+    private float gameClock = 0;
+    private float orderSpawnTimer = 0;
+    private int missedOrders = 0;
+    
+    // Finished runs go to a local leaderboard, written off the game thread
+    private static final String SCORES_DIR = "scores";
+    private HighScoreStore highScores;
+    
     // UI elements
     private BitmapText scoreText;
     private BitmapText timeText;
     private BitmapText messageText;
     private BitmapText deliveryTimerText;
+    private BitmapText physicsText;
+    private BitmapText routeText;
+    private BitmapText profilerText;
+    private BitmapText netText;
     
     // Game state
-    private enum GameState { PLAYING, GAME_OVER, WIN }
-    private GameState state = GameState.PLAYING;
+    private enum GameState { LOADING, PLAYING, GAME_OVER, WIN }
+    private GameState state = GameState.LOADING;
+    
+    // Loading: assets stream in on background threads, then the city is built a row per frame
+    private AssetPreloader preloader;
+    private Texture groundTexture;
+    private LightBaker lightBaker;
+    private BitmapText loadingText;
+    
+    // City generation
+    private static final long CITY_SEED = 1234; // Fixed seed for reproducible layout
+    private int gridSize = 5; // 5x5 grid of buildings
+    private float spacing = 25f; // Space between building centers
+    private static final String CITY_CACHE_DIR = "cache";
+    private CityLayout cityLayout;
+    private CityBuilder cityBuilder;
+    private float lodDistance = 120f; // Buildings beyond this are drawn as a single box
+    private float viewDistance = 400f; // Buildings beyond this are not drawn at all
+    
+    // Frame profiling, shown with F3 and written to profiles/frame-profile.jsonl
+    private FrameProfiler profiler = new FrameProfiler(2f, Paths.get("profiles", "frame-profile.jsonl"));
+    private FrameProfiler.Histogram frameTime = profiler.add("frame");
+    private FrameProfiler.Histogram movementTime = profiler.add("playerMovement");
+    private FrameProfiler.Histogram carriedPizzaTime = profiler.add("carriedPizza");
+    private FrameProfiler.Histogram gameTimeTime = profiler.add("gameTime");
+    private FrameProfiler.Histogram winCheckTime = profiler.add("winCondition");
+    private FrameProfiler.Histogram physicsStepTime = profiler.add("physicsStep");
+    private FrameProfiler.Histogram collisionTime = profiler.add("collision");
+    private FrameProfiler.Histogram renderTime = profiler.add("renderSubmit");
+    private FrameProfiler.Histogram crowdStepTime = profiler.add("crowdStep");
+    private long frameStart = 0;
+    private long renderStart = 0;
+    private boolean profilerVisible = false;
+    
+    // Adaptive quality, holding the frame time under a budget
+    private float frameBudget = 1000f / 60f; // milliseconds
+    private int fixedQuality = -1; // -1 adapts, otherwise a QualityGovernor level
+    private QualityGovernor qualityGovernor;
+    private RenderScaler renderScaler;
+    
+    // Ambient pedestrians and traffic in the streets
+    private int crowdSize = 8000;
+    private CrowdSimulation crowd;
+    
+    // Online play against other couriers, with --connect <port>
+    private CourierClient courierClient;
+    private Node rivalsNode;
+    private Mesh rivalMesh;
+    private Material rivalMat;
+    private final Map<Integer, Geometry> rivals = new HashMap<>();
+    private boolean serverChecked = false;
+    
+    // Online the server owns the player's position, score and deliveries; local
+    // movement is a prediction that each snapshot corrects
+    private static final float PREDICTION_TOLERANCE = 0.5f; // More than a run covers between two inputs
+    private static final float SNAP_DISTANCE = 4f; // Larger errors teleport instead of blending
+    private static final float CORRECTION_RATE = 10f; // Share of the error removed per second
+    private int reconciledSnapshot = 0;
+    private final Vector3f predictionError = new Vector3f();
+    private final Vector3f pendingCorrection = new Vector3f();
+    private Spatial serverTargetMarker;
+    private int serverTarget = -1;
+    
+    // Input recording and replay
+    private static final String DEFAULT_RECORDING = "recordings/last-run.ppr";
+    private InputRecorder recorder;
+    private InputReplayer replayer;
+    private InputReplayer.ReplayTimer replayTimer;
+    private int cameraYaw;
+    private int cameraPitch;
     
     public static void main(String[] args) {
         PizzaParkour app = new PizzaParkour();
@@ -79,6 +180,51 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         settings.setTitle("Pizza Parkour: Rooftop Delivery");
         settings.setResolution(1280, 720);
         app.setSettings(settings);
+        
+        // --replay <file> plays a recorded run back, otherwise the run is recorded
+        String recordPath = DEFAULT_RECORDING;
+        try {
+            for (int i = 0; i < args.length - 1; i++) {
+                if (args[i].equals("--replay")) {
+                    app.replayer = new InputReplayer(Paths.get(args[i + 1]));
+                    app.replayTimer = new InputReplayer.ReplayTimer(app.replayer, app);
+                    app.setTimer(app.replayTimer);
+                } else if (args[i].equals("--record")) {
+                    recordPath = args[i + 1];
+                } else if (args[i].equals("--rush-hour")) {
+                    app.rushHour = true;
+                    app.orderRate = Float.parseFloat(args[i + 1]);
+                } else if (args[i].equals("--grid-size")) {
+                    app.gridSize = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--lod-distance")) {
+                    app.lodDistance = Float.parseFloat(args[i + 1]);
+                } else if (args[i].equals("--view-distance")) {
+                    app.viewDistance = Float.parseFloat(args[i + 1]);
+                } else if (args[i].equals("--frame-budget")) {
+                    app.frameBudget = Float.parseFloat(args[i + 1]);
+                } else if (args[i].equals("--crowd")) {
+                    app.crowdSize = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--connect")) {
+                    app.courierClient = new CourierClient(Integer.parseInt(args[i + 1]), 30);
+                } else if (args[i].equals("--quality")) {
+                    app.fixedQuality = args[i + 1].equals("auto") ? -1 : Integer.parseInt(args[i + 1]);
+                } else {
+                    app.physicsConfig.parseOption(args[i], args[i + 1]);
+                }
+            }
+            if (app.courierClient != null) {
+                // The server plays by the standard delivery rules
+                app.rushHour = false;
+            }
+            if (app.replayer == null) {
+                app.recorder = new InputRecorder(Paths.get(recordPath), CITY_SEED);
+                app.setTimer(new InputRecorder.RecordingTimer());
+            }
+        } catch (IOException e) {
+            // Recording is best effort; the game still runs without it
+            e.printStackTrace();
+        }
+        
         app.start();
     }
 
@@ -89,163 +235,210 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         cam.setLocation(new Vector3f(0, 10, 10));
         setUpKeys();
         
-        // Set up physics
-        bulletAppState = new BulletAppState();
+        // During replay the camera and controls are driven by the recording
+        if (replayer != null) {
+            if (replayer.getSeed() != CITY_SEED) {
+                System.out.println("Warning: recording was made with city seed " + replayer.getSeed());
+            }
+            flyCam.setEnabled(false);
+        }
+        
+        // Set up physics, with the broadphase covering the ground and the whole grid
+        bulletAppState = physicsConfig.createAppState(CityBuilder.worldHalfExtent(gridSize, spacing));
         stateManager.attach(bulletAppState);
-        bulletAppState.getPhysicsSpace().setGravity(new Vector3f(0, -30f, 0));
+        stateManager.attach(renderTimer);
+        physicsConfig.applyTo(bulletAppState.getPhysicsSpace());
+        bulletAppState.getPhysicsSpace().setGravity(new Vector3f(0, -PlayerPhysics.GRAVITY, 0));
         bulletAppState.getPhysicsSpace().addCollisionListener(this);
+        bulletAppState.getPhysicsSpace().addTickListener(physicsTimer);
+        physicsTimer.setHistogram(physicsStepTime);
+        bulletAppState.setEnabled(false); // Paused until the city is built
         
         // Set up lighting
         setupLighting();
         
-        // Create game environment
-        createCity();
-        
-        // Create player
-        createPlayer();
+        try {
+            highScores = new HighScoreStore(Paths.get(SCORES_DIR), 100);
+        } catch (IOException e) {
+            // The leaderboard is optional; play on without it
+            e.printStackTrace();
+        }
         
-        // Set up UI
-        createUI();
+        // Show progress while assets load in the background
+        loadingText = new BitmapText(guiFont, false);
+        loadingText.setSize(guiFont.getCharSet().getRenderedSize() * 1.5f);
+        loadingText.setText("Loading...");
+        loadingText.setLocalTranslation(
+                settings.getWidth() / 2 - loadingText.getLineWidth() / 2,
+                settings.getHeight() / 2,
+                0);
+        guiNode.attachChild(loadingText);
         
-        // Start the game
-        startNewGame();
+        preloader = new AssetPreloader(this, 2);
+        preloader.load(groundTextureKey(), texture -> groundTexture = texture);
+        preloader.warm(new AssetKey<>("Common/MatDefs/Misc/Unshaded.j3md"));
+        state = GameState.LOADING;
     }
     
-    private void setupLighting() {
-        // Sun light
-        DirectionalLight sun = new DirectionalLight();
-        sun.setDirection(new Vector3f(-0.5f, -0.5f, -0.5f).normalizeLocal());
-        sun.setColor(ColorRGBA.White.mult(1.3f));
-        rootNode.addLight(sun);
+    /**
+     * Advances loading by one step per frame, so the loading screen keeps drawing.
+     */
+    private void updateLoading() {
+        if (!preloader.isDone()) {
+            loadingText.setText(String.format("Loading assets... %d%%", (int) (preloader.getProgress() * 100)));
+            return;
+        }
         
-        // Ambient light
-        AmbientLight ambient = new AmbientLight();
-        ambient.setColor(ColorRGBA.White.mult(0.3f));
-        rootNode.addLight(ambient);
+        // Create game environment
+        if (cityNode == null) {
+            preloader.shutdown();
+            beginCity();
+        } else if (!cityBuilder.isComplete()) {
+            cityBuilder.buildRow();
+            loadingText.setText(String.format("Building city... %d%%", cityBuilder.getRowsBuilt() * 100 / gridSize));
+            return;
+        } else {
+            finishCity();
+            createCrowd();
+            
+            // Create player
+            createPlayer();
+            
+            // Set up UI
+            createUI();
+            
+            // Start at the best quality and let the governor step down if needed
+            qualityGovernor = new QualityGovernor(frameBudget, fixedQuality);
+            renderScaler = new RenderScaler(assetManager, renderManager, viewPort, rootNode);
+            applyQuality();
+            
+            // Start the game
+            bulletAppState.setEnabled(true);
+            if (replayTimer != null) {
+                replayTimer.setRunning(true);
+            }
+            startNewGame();
+        }
     }
     
-    private void createCity() {
-        cityNode = new Node("City");
-        rootNode.attachChild(cityNode);
+    /**
+     * Fills the streets between the building rows with pedestrians and vehicles.
+     */
+    private void createCrowd() {
+        if (crowdSize <= 0) {
+            return;
+        }
+        Mesh vehicleMesh = new Box(0.5f, 0.5f, 0.5f);
+        lightBaker.bakeMesh(vehicleMesh, Quaternion.IDENTITY);
+        Material vehicleMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.2f, 0.4f, 0.8f, 1f)); // Blue cars
+        vehicleMat.setBoolean("UseInstancing", true);
+        
+        Mesh pedestrianMesh = new Box(0.5f, 0.5f, 0.5f);
+        lightBaker.bakeMesh(pedestrianMesh, Quaternion.IDENTITY);
+        Material pedestrianMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.6f, 0.6f, 0.55f, 1f));
+        pedestrianMat.setBoolean("UseInstancing", true);
         
-        // Create ground
-        Box groundBox = new Box(100, 0.5f, 100);
-        Geometry ground = new Geometry("Ground", groundBox);
-        Material groundMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
+        // Street lines run halfway between building cells, around the whole grid;
+        // steps are held to about 4 ms on the worker threads
+        crowd = new CrowdSimulation(cityBuilder.getStartX() - spacing / 2, spacing, gridSize + 1, crowdSize, CITY_SEED + 3,
+                4f, vehicleMesh, vehicleMat, pedestrianMesh, pedestrianMat);
+        crowd.setHistogram(crowdStepTime);
+        crowd.attachTo(cityNode);
+    }
+    
+    private TextureKey groundTextureKey() {
         TextureKey groundKey = new TextureKey("Textures/Terrain/Asphalt/Asphalt.jpg");
         groundKey.setGenerateMips(true);
-        Texture groundTex = assetManager.loadTexture(groundKey);
-        groundTex.setWrap(Texture.WrapMode.Repeat);
-        groundMat.setTexture("DiffuseMap", groundTex);
-        ground.setMaterial(groundMat);
-        ground.setLocalTranslation(0, -0.5f, 0);
-        
-        // Add physics to ground
-        RigidBodyControl groundPhysics = new RigidBodyControl(0);
-        ground.addControl(groundPhysics);
-        bulletAppState.getPhysicsSpace().add(groundPhysics);
-        cityNode.attachChild(ground);
-        
-        // Create buildings with rooftops
-        Random random = new Random(1234); // Fixed seed for reproducible layout
-        
-        // Materials for buildings and rooftops
-        Material[] buildingMats = new Material[5];
-        for (int i = 0; i < 5; i++) {
-            buildingMats[i] = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-            buildingMats[i].setColor("Diffuse", new ColorRGBA(
-                    0.4f + random.nextFloat() * 0.3f,
-                    0.4f + random.nextFloat() * 0.3f,
-                    0.4f + random.nextFloat() * 0.3f,
-                    1.0f));
-            buildingMats[i].setColor("Ambient", ColorRGBA.White);
-            buildingMats[i].setBoolean("UseMaterialColors", true);
-        }
-        
-        Material roofMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        roofMat.setColor("Diffuse", new ColorRGBA(0.8f, 0.2f, 0.2f, 1.0f)); // Reddish roofs
-        roofMat.setColor("Ambient", ColorRGBA.White);
-        roofMat.setBoolean("UseMaterialColors", true);
-        
-        // Create a grid of buildings
-        int gridSize = 5; // 5x5 grid of buildings
-        float spacing = 25f; // Space between building centers
-        float startX = -(gridSize * spacing) / 2 + spacing / 2;
-        float startZ = -(gridSize * spacing) / 2 + spacing / 2;
-        
-        // Track pizza shop location and potential delivery locations
-        Vector3f pizzaShopLocation = null;
-        List<Vector3f> potentialDeliveryLocations = new ArrayList<>();
-        
-        for (int x = 0; x < gridSize; x++) {
-            for (int z = 0; z < gridSize; z++) {
-                // Skip some positions randomly to create irregular city layout
-                if (random.nextFloat() < 0.2f) continue;
-                
-                // Calculate building position
-                float posX = startX + x * spacing;
-                float posZ = startZ + z * spacing;
-                
-                // Randomize building dimensions
-                float width = 8f + random.nextFloat() * 5f;
-                float height = 10f + random.nextFloat() * 20f;
-                float depth = 8f + random.nextFloat() * 5f;
-                
-                // Create building
-                Box buildingBox = new Box(width/2, height/2, depth/2);
-                Geometry building = new Geometry("Building", buildingBox);
-                building.setMaterial(buildingMats[random.nextInt(buildingMats.length)]);
-                building.setLocalTranslation(posX, height/2, posZ);
-                
-                // Create rooftop
-                Box roofBox = new Box(width/2 + 0.5f, 0.2f, depth/2 + 0.5f);
-                Geometry roof = new Geometry("Roof", roofBox);
-                roof.setMaterial(roofMat);
-                roof.setLocalTranslation(posX, height + 0.2f, posZ);
-                
-                // Add physics to building and roof
-                RigidBodyControl buildingPhysics = new RigidBodyControl(0);
-                building.addControl(buildingPhysics);
-                
-                RigidBodyControl roofPhysics = new RigidBodyControl(0);
-                roof.addControl(roofPhysics);
-                
-                // Add to scene and physics space
-                cityNode.attachChild(building);
-                cityNode.attachChild(roof);
-                bulletAppState.getPhysicsSpace().add(buildingPhysics);
-                bulletAppState.getPhysicsSpace().add(roofPhysics);
-                
-                // Track as potential delivery location
-                potentialDeliveryLocations.add(new Vector3f(posX, height + 0.5f, posZ));
-                
-                // If it's the center building, mark as pizza shop
-                if (x == gridSize/2 && z == gridSize/2) {
-                    pizzaShopLocation = new Vector3f(posX, height + 0.5f, posZ);
-                }
-            }
+        return groundKey;
+    }
+    
+    private void setupLighting() {
+        // Sun and ambient light never change, so they are baked into the
+        // geometry's vertex colours rather than lit per pixel every frame
+        lightBaker = new LightBaker(new Vector3f(-0.5f, -0.5f, -0.5f),
+                ColorRGBA.White.mult(1.3f), ColorRGBA.White.mult(0.3f));
+    }
+    
+    /**
+     * Creates the ground, materials and city-wide structures. Buildings are
+     * then added one grid row per frame by the city builder.
+     */
+    private void beginCity() {
+        // Generated layout of buildings with rooftops, from the cache when possible
+        cityLayout = CityLayout.loadOrGenerate(Paths.get(CITY_CACHE_DIR), CITY_SEED, gridSize, spacing);
+        
+        if (groundTexture == null) {
+            groundTexture = assetManager.loadTexture(groundTextureKey());
         }
+        cityBuilder = new CityBuilder(assetManager, bulletAppState.getPhysicsSpace(), lightBaker, cityLayout,
+                groundTexture, lodDistance, viewDistance);
+        cityNode = cityBuilder.getNode();
+        rootNode.attachChild(cityNode);
+        buildingRenderer = cityBuilder.getBuildingRenderer();
+        
+        // Roofs become nodes of the navigation graph used for route guidance
+        rooftopGraph = cityBuilder.getRooftopGraph();
+    }
+    
+    /**
+     * Links the finished grid together and places the shop and delivery locations.
+     */
+    private void finishCity() {
+        // Connect roofs the player can jump between
+        cityBuilder.finish(PlayerPhysics.JUMP_SPEED, PlayerPhysics.SPEED, PlayerPhysics.GRAVITY, PlayerPhysics.RADIUS);
+        routeFinder = new RouteFinder(rooftopGraph);
         
         // Create pizza shop at the chosen location
+        Vector3f pizzaShopLocation = cityBuilder.getShopLocation();
         if (pizzaShopLocation != null) {
             pizzaShop = createPizzaShop(pizzaShopLocation);
             cityNode.attachChild(pizzaShop);
+            shopNode = rooftopGraph.findNode(pizzaShopLocation.x, pizzaShopLocation.z);
         }
+        pizzaContacts = new PizzaContacts(pizzaShop);
         
-        // Choose random delivery locations from potential locations (exclude pizza shop)
-        potentialDeliveryLocations.remove(pizzaShopLocation);
+        // All delivery locations share one material per part
+        Material platformMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0f, 0.7f, 0f, 1f)); // Green platform
+        Material arrowMat = LightBaker.createMaterial(assetManager, new ColorRGBA(1f, 1f, 0f, 1f)); // Yellow arrow
         
-        // Create initial delivery locations
-        for (int i = 0; i < 3; i++) {
-            if (!potentialDeliveryLocations.isEmpty()) {
-                int index = random.nextInt(potentialDeliveryLocations.size());
-                Vector3f location = potentialDeliveryLocations.get(index);
-                potentialDeliveryLocations.remove(index);
-                
-                Spatial deliveryLocation = createDeliveryLocation(location);
-                deliveryLocations.add(deliveryLocation);
-                cityNode.attachChild(deliveryLocation);
+        // In rush hour every roof except the shop can receive orders, so the
+        // markers are instanced and found by building rather than by collision
+        if (rushHour) {
+            platformMat.setBoolean("UseInstancing", true);
+            arrowMat.setBoolean("UseInstancing", true);
+            deliveryMarkers = new DeliveryMarkers(platformMat, arrowMat);
+            lightBaker.bakeMesh(deliveryMarkers.getPlatformMesh(), Quaternion.IDENTITY);
+            lightBaker.bakeMesh(deliveryMarkers.getArrowMesh(), Quaternion.IDENTITY);
+            
+            orderScheduler = new OrderScheduler(spacing);
+            for (int b = 0; b < cityLayout.count; b++) {
+                if (b == cityLayout.shopBuilding) {
+                    continue;
+                }
+                // Markers and scheduler locations are numbered alike
+                Vector3f location = cityBuilder.getDeliveryLocation(b);
+                deliveryMarkers.addMarker(b, location.x, location.y, location.z);
+                orderScheduler.addLocation(location.x, location.z);
             }
+            orderScheduler.buildIndex();
+            deliveryMarkers.update();
+            cityNode.attachChild(deliveryMarkers.getNode());
+            return;
+        }
+        
+        // Online the server picks each delivery; its current target gets the only marker
+        if (courierClient != null) {
+            serverTargetMarker = createDeliveryMarker("ServerTarget", platformMat, arrowMat);
+            serverTargetMarker.setCullHint(CullHint.Always);
+            cityNode.attachChild(serverTargetMarker);
+            return;
+        }
+        
+        // Create the delivery locations the generator picked
+        for (int b : cityLayout.deliveryBuildings) {
+            Spatial deliveryLocation = createDeliveryLocation(cityBuilder.getDeliveryLocation(b), platformMat, arrowMat);
+            deliveryLocations.add(deliveryLocation);
+            cityNode.attachChild(deliveryLocation);
         }
     }
     
@@ -256,29 +449,20 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         // Base
         Box base = new Box(3f, 0.2f, 3f);
         Geometry baseGeom = new Geometry("ShopBase", base);
-        Material baseMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        baseMat.setColor("Diffuse", new ColorRGBA(1f, 0.8f, 0f, 1f)); // Golden base
-        baseMat.setColor("Ambient", ColorRGBA.White);
-        baseMat.setBoolean("UseMaterialColors", true);
+        Material baseMat = LightBaker.createMaterial(assetManager, new ColorRGBA(1f, 0.8f, 0f, 1f)); // Golden base
         baseGeom.setMaterial(baseMat);
         
         // Sign post
         Cylinder post = new Cylinder(12, 12, 0.3f, 2f);
         Geometry postGeom = new Geometry("ShopPost", post);
-        Material postMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        postMat.setColor("Diffuse", new ColorRGBA(0.6f, 0.3f, 0f, 1f)); // Brown post
-        postMat.setColor("Ambient", ColorRGBA.White);
-        postMat.setBoolean("UseMaterialColors", true);
+        Material postMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.6f, 0.3f, 0f, 1f)); // Brown post
         postGeom.setMaterial(postMat);
         postGeom.setLocalTranslation(0, 1f, 0);
         
         // Shop sign (pizza shape)
         Cylinder sign = new Cylinder(24, 24, 2f, 0.2f);
         Geometry signGeom = new Geometry("ShopSign", sign);
-        Material signMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        signMat.setColor("Diffuse", new ColorRGBA(0.9f, 0.1f, 0f, 1f)); // Red sign
-        signMat.setColor("Ambient", ColorRGBA.White);
-        signMat.setBoolean("UseMaterialColors", true);
+        Material signMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.9f, 0.1f, 0f, 1f)); // Red sign
         signGeom.setMaterial(signMat);
         
         // Rotate to horizontal pizza
@@ -300,44 +484,47 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         
         // Set location
         shopNode.setLocalTranslation(location);
+        lightBaker.bake(shopNode);
         
         return shopNode;
     }
     
-    private Spatial createDeliveryLocation(Vector3f location) {
-        Node deliveryNode = new Node("DeliveryLocation");
+    private Spatial createDeliveryLocation(Vector3f location, Material platformMat, Material arrowMat) {
+        Node deliveryNode = createDeliveryMarker("DeliveryLocation", platformMat, arrowMat);
+        
+        // Add physics box for collisions
+        BoxCollisionShape boxShape = new BoxCollisionShape(new Vector3f(2f, 1f, 2f));
+        RigidBodyControl deliveryPhysics = new RigidBodyControl(boxShape, 0);
+        deliveryNode.addControl(deliveryPhysics);
+        bulletAppState.getPhysicsSpace().add(deliveryPhysics);
+        
+        // Set location
+        deliveryNode.setLocalTranslation(location);
+        
+        return deliveryNode;
+    }
+    
+    /**
+     * The platform and arrow of a delivery location, without physics.
+     */
+    private Node createDeliveryMarker(String name, Material platformMat, Material arrowMat) {
+        Node deliveryNode = new Node(name);
         
         // Base platform
         Box platform = new Box(2f, 0.2f, 2f);
         Geometry platformGeom = new Geometry("DeliveryPlatform", platform);
-        Material platformMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        platformMat.setColor("Diffuse", new ColorRGBA(0f, 0.7f, 0f, 1f)); // Green platform
-        platformMat.setColor("Ambient", ColorRGBA.White);
-        platformMat.setBoolean("UseMaterialColors", true);
         platformGeom.setMaterial(platformMat);
         
         // Arrow pointing down
         Box arrow = new Box(0.5f, 1f, 0.5f);
         Geometry arrowGeom = new Geometry("DeliveryArrow", arrow);
-        Material arrowMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        arrowMat.setColor("Diffuse", new ColorRGBA(1f, 1f, 0f, 1f)); // Yellow arrow
-        arrowMat.setColor("Ambient", ColorRGBA.White);
-        arrowMat.setBoolean("UseMaterialColors", true);
         arrowGeom.setMaterial(arrowMat);
         arrowGeom.setLocalTranslation(0, 1.5f, 0);
         
-        // Add physics box for collisions
-        BoxCollisionShape boxShape = new BoxCollisionShape(new Vector3f(2f, 1f, 2f));
-        RigidBodyControl deliveryPhysics = new RigidBodyControl(boxShape, 0);
-        deliveryNode.addControl(deliveryPhysics);
-        bulletAppState.getPhysicsSpace().add(deliveryPhysics);
-        
         // Add to node
         deliveryNode.attachChild(platformGeom);
         deliveryNode.attachChild(arrowGeom);
-        
-        // Set location
-        deliveryNode.setLocalTranslation(location);
+        lightBaker.bake(deliveryNode);
         
         return deliveryNode;
     }
@@ -345,10 +532,7 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
     private Spatial createPizza() {
         Cylinder pizza = new Cylinder(24, 24, 1f, 0.1f);
         Geometry pizzaGeom = new Geometry("Pizza", pizza);
-        Material pizzaMat = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        pizzaMat.setColor("Diffuse", new ColorRGBA(0.9f, 0.8f, 0.3f, 1f)); // Pizza color
-        pizzaMat.setColor("Ambient", ColorRGBA.White);
-        pizzaMat.setBoolean("UseMaterialColors", true);
+        Material pizzaMat = LightBaker.createMaterial(assetManager, new ColorRGBA(0.9f, 0.8f, 0.3f, 1f)); // Pizza color
         pizzaGeom.setMaterial(pizzaMat);
         
         // Rotate to horizontal pizza
@@ -356,16 +540,16 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         rotation.fromAngleAxis(FastMath.HALF_PI, Vector3f.UNIT_X);
         pizzaGeom.setLocalRotation(rotation);
         
+        // Only carried around, never turned, so its lighting can be baked too
+        lightBaker.bake(pizzaGeom);
+        
         return pizzaGeom;
     }
     
     private void createPlayer() {
         // Create player physics capsule
-        CapsuleCollisionShape capsuleShape = new CapsuleCollisionShape(0.5f, 1.8f, 1);
-        player = new CharacterControl(capsuleShape, 0.1f);
-        player.setJumpSpeed(jumpSpeed);
-        player.setFallSpeed(30);
-        player.setGravity(30);
+        player = new CharacterControl(PlayerPhysics.createShape(), PlayerPhysics.STEP_HEIGHT);
+        PlayerPhysics.configure(player);
         
         // Set initial player position on the pizza shop rooftop
         if (pizzaShop != null) {
@@ -382,7 +566,6 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
     private void createUI() {
         // Initialize UI elements
         guiNode.detachAllChildren();
-        guiFont = assetManager.loadFont("Interface/Fonts/Default.fnt");
         
         // Score text
         scoreText = new BitmapText(guiFont, false);
@@ -406,6 +589,35 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         deliveryTimerText.setColor(ColorRGBA.Green);
         guiNode.attachChild(deliveryTimerText);
         
+        // Physics step timing
+        physicsText = new BitmapText(guiFont, false);
+        physicsText.setSize(guiFont.getCharSet().getRenderedSize());
+        physicsText.setText("Physics: -");
+        physicsText.setLocalTranslation(10, settings.getHeight() - 40, 0);
+        guiNode.attachChild(physicsText);
+        
+        // Route guidance
+        routeText = new BitmapText(guiFont, false);
+        routeText.setSize(guiFont.getCharSet().getRenderedSize());
+        routeText.setText("");
+        routeText.setLocalTranslation(10, settings.getHeight() - 70, 0);
+        guiNode.attachChild(routeText);
+        
+        // Profiler overlay, hidden until toggled
+        profilerText = new BitmapText(guiFont, false);
+        profilerText.setSize(guiFont.getCharSet().getRenderedSize());
+        profilerText.setText("");
+        profilerText.setLocalTranslation(10, settings.getHeight() - 100, 0);
+        profilerText.setCullHint(profilerVisible ? CullHint.Inherit : CullHint.Always);
+        guiNode.attachChild(profilerText);
+        
+        // Online status, along the bottom
+        netText = new BitmapText(guiFont, false);
+        netText.setSize(guiFont.getCharSet().getRenderedSize());
+        netText.setText("");
+        netText.setLocalTranslation(10, 30, 0);
+        guiNode.attachChild(netText);
+        
         // Message text (centered)
         messageText = new BitmapText(guiFont, false);
         messageText.setSize(guiFont.getCharSet().getRenderedSize() * 1.5f);
@@ -424,45 +636,328 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         inputManager.addMapping("Down", new KeyTrigger(KeyInput.KEY_S));
         inputManager.addMapping("Jump", new KeyTrigger(KeyInput.KEY_SPACE));
         inputManager.addMapping("Restart", new KeyTrigger(KeyInput.KEY_R));
+        inputManager.addMapping("Profiler", new KeyTrigger(KeyInput.KEY_F3));
         
-        inputManager.addListener(this, "Left", "Right", "Up", "Down", "Jump", "Restart");
+        if (replayer == null) {
+            inputManager.addListener(this, "Left", "Right", "Up", "Down", "Jump", "Restart");
+            if (courierClient != null) {
+                inputManager.addListener(courierClient, "Left", "Right", "Up", "Down", "Jump");
+            }
+        }
+        inputManager.addListener(profilerToggle, "Profiler");
     }
 
     @Override
     public void simpleUpdate(float tpf) {
+        // Nothing is recorded or simulated until loading has finished
+        if (state == GameState.LOADING) {
+            updateLoading();
+            return;
+        }
+        
+        // Time the whole frame, from one update to the next
+        long now = System.nanoTime();
+        if (frameStart != 0) {
+            frameTime.record(now - frameStart);
+        }
+        if (frameStart != 0 && qualityGovernor.update((now - frameStart) / 1e9f)) {
+            applyQuality();
+        }
+        frameStart = now;
+        updateProfiler(tpf);
+        
+        // Capture (or restore) this frame's camera direction before it is used
+        updateInputLog(tpf);
+        
+        // Exchange input and snapshots with the multiplayer server
+        if (courierClient != null) {
+            updateNetwork(tpf);
+        }
+        
+        // Refresh physics timing once per second
+        updatePhysicsStats(tpf);
+        
+        // Re-sort buildings into LOD bands around the camera
+        buildingRenderer.update(cam.getLocation());
+        
+        // Show the last finished crowd step and start the next one
+        if (crowd != null) {
+            crowd.update(tpf);
+        }
+        
         if (state == GameState.PLAYING) {
             // Update player movement
+            long t = System.nanoTime();
             updatePlayerMovement();
+            t = movementTime.recordSince(t);
             
             // Update carried pizza position
             updateCarriedPizza();
+            carriedPizzaTime.recordSince(t);
+            
+            // Update route guidance to the next target
+            updateRouteGuidance();
             
             // Update game time
+            t = System.nanoTime();
             updateGameTime(tpf);
+            gameTimeTime.recordSince(t);
             
             // Update current delivery time if holding pizza
-            if (holdingPizza) {
+            if (rushHour) {
+                updateOrders(tpf);
+                if (holdingPizza) {
+                    checkOrderDelivery();
+                }
+                deliveryMarkers.update();
+            } else if (holdingPizza) {
                 currentDeliveryTime += tpf;
                 updateDeliveryTimer();
             }
             
             // Check for win condition
+            t = System.nanoTime();
             checkWinCondition();
+            winCheckTime.recordSince(t);
+        }
+        
+        // The scaled view renders with a copy of this frame's camera
+        renderScaler.update();
+    }
+    
+    /**
+     * Starts the render timer. Attached after every other state, so its render
+     * runs last, after BulletAppState has stepped sequential physics; what is
+     * timed up to simpleRender is renderManager.render alone, the CPU side of
+     * culling and draw submission.
+     */
+    private final AppState renderTimer = new AbstractAppState() {
+        @Override
+        public void render(RenderManager rm) {
+            renderStart = System.nanoTime();
+        }
+    };
+    
+    @Override
+    public void simpleRender(RenderManager rm) {
+        if (renderStart != 0) {
+            renderTime.recordSince(renderStart);
+            renderStart = 0;
         }
     }
     
-    private void updatePlayerMovement() {
-        Vector3f camDir = cam.getDirection().clone().multLocal(0.6f);
-        Vector3f camLeft = cam.getLeft().clone().multLocal(0.4f);
-        walkDirection.set(0, 0, 0);
+    private final ActionListener profilerToggle = (name, isPressed, tpf) -> {
+        if (isPressed && profilerText != null) {
+            profilerVisible = !profilerVisible;
+            profilerText.setCullHint(profilerVisible ? CullHint.Inherit : CullHint.Always);
+            profilerText.setText(getProfilerOverlay());
+        }
+    };
+    
+    private void updateProfiler(float tpf) {
+        if (profiler.update(tpf) && profilerVisible) {
+            profilerText.setText(getProfilerOverlay());
+        }
+    }
+    
+    private String getProfilerOverlay() {
+        return String.format("Quality: %s%s  (%.1f / %.1f ms)%n",
+                qualityGovernor.getLevel().name, qualityGovernor.isAdaptive() ? "" : " (fixed)",
+                qualityGovernor.getSmoothedMillis(), qualityGovernor.getBudgetMillis())
+                + profiler.format();
+    }
+    
+    /**
+     * Applies the governor's current level to view distance, LOD, ground
+     * texture filtering and render resolution.
+     */
+    private void applyQuality() {
+        QualityGovernor.Level level = qualityGovernor.getLevel();
+        float view = viewDistance * level.viewScale;
+        buildingRenderer.setDistances(Math.min(lodDistance * level.lodScale, view), view);
+        cam.setFrustumFar(view);
+        
+        // Coarser mip filtering stands in for a mip bias, which jME does not expose
+        groundTexture.setMinFilter(level.minFilter);
+        groundTexture.setAnisotropicFilter(level.anisotropy);
+        
+        renderScaler.setScale(level.renderScale);
+    }
+    
+    /**
+     * Sends this frame's heading to the server, reconciles the player with
+     * the server's courier and draws the other couriers where the latest
+     * snapshot puts them.
+     */
+    private void updateNetwork(float tpf) {
+        courierClient.setYaw(cameraYaw);
+        courierClient.setPredictedPosition(player.getPhysicsLocation());
+        courierClient.update(tpf);
+        
+        Snapshot snapshot = courierClient.getLatest();
+        if (snapshot == null) {
+            String reason = courierClient.getRejectReason();
+            netText.setText(reason != null ? "Server refused: " + reason : "Connecting to server...");
+            return;
+        }
+        if (!serverChecked) {
+            serverChecked = true;
+            if (courierClient.getCitySeed() != CITY_SEED || courierClient.getGridSize() != gridSize) {
+                System.out.println("Warning: server city is seed " + courierClient.getCitySeed()
+                        + ", grid " + courierClient.getGridSize());
+            }
+        }
         
-        // Cancel out the y component for level movement
-        camDir.y = 0;
-        camLeft.y = 0;
+        if (rivalsNode == null) {
+            rivalsNode = new Node("Rivals");
+            rootNode.attachChild(rivalsNode);
+            rivalMesh = new Box(PlayerPhysics.RADIUS, PlayerPhysics.HEIGHT / 2 + PlayerPhysics.RADIUS, PlayerPhysics.RADIUS);
+            lightBaker.bakeMesh(rivalMesh, Quaternion.IDENTITY);
+            rivalMat = LightBaker.createMaterial(assetManager, new ColorRGBA(1f, 0.5f, 0f, 1f)); // Orange couriers
+        }
+        
+        int ownId = courierClient.getCourierId();
+        int own = snapshot.indexOf(ownId);
+        if (snapshot.getSeq() != reconciledSnapshot) {
+            reconciledSnapshot = snapshot.getSeq();
+            if (own >= 0 && state == GameState.PLAYING) {
+                applyServerState(snapshot.score[own], snapshot.state[own]);
+            }
+            if (courierClient.getPredictionError(predictionError)) {
+                reconcilePlayer();
+            }
+        }
+        correctPrediction(tpf);
+        
+        int ownScore = own >= 0 ? snapshot.score[own] : 0;
+        int bestRival = 0;
+        for (int i = 0; i < snapshot.getCount(); i++) {
+            int id = snapshot.ids[i];
+            if (id == ownId) {
+                continue;
+            }
+            bestRival = Math.max(bestRival, snapshot.score[i]);
+            Geometry rival = rivals.get(id);
+            if (rival == null) {
+                rival = new Geometry("Rival", rivalMesh);
+                rival.setMaterial(rivalMat);
+                rivalsNode.attachChild(rival);
+                rivals.put(id, rival);
+            }
+            rival.setLocalTranslation(NetProtocol.position(snapshot.x[i]),
+                    NetProtocol.position(snapshot.y[i]), NetProtocol.position(snapshot.z[i]));
+        }
+        for (Iterator<Map.Entry<Integer, Geometry>> it = rivals.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Geometry> entry = it.next();
+            if (snapshot.indexOf(entry.getKey()) < 0) {
+                entry.getValue().removeFromParent();
+                it.remove();
+            }
+        }
+        netText.setText(String.format("Online: %d couriers  Server score: %d  Best rival: %d",
+                snapshot.getCount(), ownScore, bestRival));
+    }
+    
+    /**
+     * Follows the server's verdict on pickups and deliveries for the player's courier.
+     */
+    private void applyServerState(int serverScore, int serverState) {
+        boolean carrying = (serverState & 1) != 0;
+        if (carrying && !holdingPizza) {
+            pickupPizza(spawnPizzaAtShop());
+        } else if (!carrying && holdingPizza) {
+            completeDelivery(serverScore - score, deliveryTimeLimit - currentDeliveryTime);
+        }
+        if (serverScore != score) {
+            score = serverScore;
+            updateScoreText();
+        }
         
-        // Normalize
-        camDir.normalizeLocal();
-        camLeft.normalizeLocal();
+        // Mark the roof the server wants this pizza on
+        int target = (serverState >> 1) - 1;
+        if (target != serverTarget) {
+            serverTarget = target;
+            if (target >= 0 && target < cityLayout.count) {
+                serverTargetMarker.setLocalTranslation(cityBuilder.getDeliveryLocation(target));
+                serverTargetMarker.setCullHint(CullHint.Inherit);
+            } else {
+                serverTargetMarker.setCullHint(CullHint.Always);
+            }
+        }
+    }
+    
+    /**
+     * Starts correcting the player towards where the server has its courier.
+     * The error is measured at the last input the server applied, so it
+     * holds for the player now, and the correction is also applied to the
+     * predictions of inputs still in flight.
+     */
+    private void reconcilePlayer() {
+        float error = predictionError.length();
+        if (error > SNAP_DISTANCE) {
+            player.setPhysicsLocation(player.getPhysicsLocation().addLocal(predictionError));
+            courierClient.shiftPredictions(predictionError);
+            pendingCorrection.set(0, 0, 0);
+        } else if (error > PREDICTION_TOLERANCE) {
+            pendingCorrection.set(predictionError);
+        } else {
+            pendingCorrection.set(0, 0, 0);
+        }
+    }
+    
+    private void correctPrediction(float tpf) {
+        if (pendingCorrection.lengthSquared() == 0) {
+            return;
+        }
+        // Blend out small errors over a few frames instead of jumping
+        Vector3f step = pendingCorrection.mult(Math.min(1f, CORRECTION_RATE * tpf));
+        player.setPhysicsLocation(player.getPhysicsLocation().addLocal(step));
+        courierClient.shiftPredictions(step);
+        pendingCorrection.subtractLocal(step);
+    }
+    
+    private void updateInputLog(float tpf) {
+        if (replayer != null) {
+            if (replayer.isFinished()) {
+                System.out.println("Replay finished. Score: " + score + "  Deliveries: " + deliveriesCompleted);
+                stop();
+                return;
+            }
+            cameraYaw = replayer.getYaw();
+            cameraPitch = replayer.getPitch();
+            cam.lookAtDirection(replayer.getDirection(new Vector3f()), Vector3f.UNIT_Y);
+            return;
+        }
+        
+        cameraYaw = InputRecorder.quantizeYaw(cam.getDirection());
+        cameraPitch = InputRecorder.quantizePitch(cam.getDirection());
+        if (recorder != null) {
+            try {
+                recorder.recordTick(tpf, cameraYaw, cameraPitch);
+            } catch (IOException e) {
+                e.printStackTrace();
+                recorder = null;
+            }
+        }
+    }
+    
+    private void updatePhysicsStats(float tpf) {
+        physicsStatsTimer += tpf;
+        if (physicsStatsTimer < 1f) {
+            return;
+        }
+        physicsStatsTimer = 0;
+        physicsText.setText(String.format("Physics: %.2f ms/step (max %.2f ms, %s)",
+                physicsTimer.getAverageMillis(), physicsTimer.takeMaxMillis(),
+                bulletAppState.getThreadingType()));
+    }
+    
+    private void updatePlayerMovement() {
+        // Level movement from the quantized camera heading, so a replay moves identically
+        float yaw = InputRecorder.angle(cameraYaw);
+        Vector3f camDir = new Vector3f(FastMath.sin(yaw), 0, FastMath.cos(yaw));
+        Vector3f camLeft = new Vector3f(FastMath.cos(yaw), 0, -FastMath.sin(yaw));
+        walkDirection.set(0, 0, 0);
         
         // Set move direction based on keys
         if (left) {
@@ -487,7 +982,7 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         if (walkDirection.length() > 0) {
             walkDirection.normalizeLocal();
         }
-        walkDirection.multLocal(playerSpeed);
+        walkDirection.multLocal(PlayerPhysics.SPEED);
         player.setWalkDirection(walkDirection);
         
         // Move camera with player
@@ -495,6 +990,54 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         cam.setLocation(new Vector3f(playerPos.x, playerPos.y + 2f, playerPos.z));
     }
     
+    private void updateRouteGuidance() {
+        Vector3f playerPos = player.getPhysicsLocation();
+        int from = rooftopGraph.findNode(playerPos.x, playerPos.z);
+        
+        // Head for the shop, or for the delivery with the fewest jumps when carrying a pizza
+        int[] route = routeFinder.findRoute(from, shopNode);
+        String target = "the pizza shop";
+        if (holdingPizza && rushHour) {
+            // Too many orders to compare, so guide to the one due soonest
+            int location = orderScheduler.getNextDueLocation();
+            route = null;
+            if (location >= 0) {
+                route = routeFinder.findRoute(from, rooftopGraph.findNode(
+                        deliveryMarkers.getX(location), deliveryMarkers.getZ(location)));
+            }
+            target = "the most urgent order";
+        } else if (holdingPizza && courierClient != null) {
+            route = null;
+            if (serverTarget >= 0 && serverTarget < cityLayout.count) {
+                Vector3f location = cityBuilder.getDeliveryLocation(serverTarget);
+                route = routeFinder.findRoute(from, rooftopGraph.findNode(location.x, location.z));
+            }
+            target = "your delivery";
+        } else if (holdingPizza) {
+            route = null;
+            for (Spatial delivery : deliveryLocations) {
+                Vector3f location = delivery.getWorldTranslation();
+                int[] candidate = routeFinder.findRoute(from, rooftopGraph.findNode(location.x, location.z));
+                if (candidate.length > 0 && (route == null || candidate.length < route.length)) {
+                    route = candidate;
+                }
+            }
+            target = "a delivery";
+        }
+        
+        if (route == null || route.length == 0) {
+            routeText.setText("No rooftop route to " + target + " from here");
+        } else if (route.length == 1) {
+            routeText.setText("You're on the roof of " + target);
+        } else {
+            int next = route[1];
+            float dx = rooftopGraph.getX(next) - playerPos.x;
+            float dz = rooftopGraph.getZ(next) - playerPos.z;
+            routeText.setText(String.format("Route to %s: %d jumps, next roof %.0fm away",
+                    target, route.length - 1, FastMath.sqrt(dx * dx + dz * dz)));
+        }
+    }
+    
     private void updateCarriedPizza() {
         if (holdingPizza && carriedPizza != null) {
             Vector3f playerPos = player.getPhysicsLocation();
@@ -524,6 +1067,61 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         }
     }
     
+    private void updateOrders(float tpf) {
+        gameClock += tpf;
+        
+        // Only orders that are due are touched
+        orderScheduler.expireOrders(gameClock, this);
+        
+        // Place new orders near random points so they spread over the city
+        orderSpawnTimer += tpf * orderRate;
+        float halfExtent = gridSize * spacing / 2;
+        while (orderSpawnTimer >= 1) {
+            orderSpawnTimer -= 1;
+            float x = (orderRandom.nextFloat() * 2 - 1) * halfExtent;
+            float z = (orderRandom.nextFloat() * 2 - 1) * halfExtent;
+            orderScheduler.placeOrder(gameClock, deliveryTimeLimit, x, z, this);
+        }
+        
+        // Show the order due soonest
+        int active = orderScheduler.getActiveOrderCount();
+        float due = active > 0 ? orderScheduler.getNextDeadline() - gameClock : 0;
+        deliveryTimerText.setText(String.format("Orders: %d  Next due: %d:%02d  Missed: %d",
+                active, (int) due / 60, (int) due % 60, missedOrders));
+        
+        // Change color based on time remaining
+        if (active > 0 && due < deliveryTimeLimit * 0.3f) {
+            deliveryTimerText.setColor(ColorRGBA.Red);
+        } else if (active > 0 && due < deliveryTimeLimit * 0.6f) {
+            deliveryTimerText.setColor(ColorRGBA.Yellow);
+        } else {
+            deliveryTimerText.setColor(ColorRGBA.Green);
+        }
+    }
+    
+    @Override
+    public void orderPlaced(int order, int location) {
+        // The arrow above a platform shows that someone is waiting for a pizza
+        deliveryMarkers.setActive(location, true);
+    }
+    
+    @Override
+    public void orderExpired(int order, int location) {
+        deliveryMarkers.setActive(location, false);
+        missedOrders++;
+    }
+    
+    private void checkOrderDelivery() {
+        // Only the marker on the roof below the player can be touched
+        Vector3f playerPos = player.getPhysicsLocation();
+        int location = deliveryMarkers.findTouched(rooftopGraph.findNode(playerPos.x, playerPos.z),
+                playerPos.x, playerPos.y, playerPos.z,
+                PlayerPhysics.RADIUS, PlayerPhysics.HEIGHT / 2 + PlayerPhysics.RADIUS);
+        if (location >= 0) {
+            deliverPizza(location);
+        }
+    }
+    
     private void updateDeliveryTimer() {
         // Update delivery timer display
         int seconds = (int) currentDeliveryTime;
@@ -550,6 +1148,16 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         gameTime = 180; // 3 minutes
         holdingPizza = false;
         
+        // Clear outstanding orders
+        if (rushHour) {
+            orderScheduler.clear();
+            deliveryMarkers.clear();
+            orderRandom = new Random(CITY_SEED + 1); // Seeded so replays see the same orders
+            gameClock = 0;
+            orderSpawnTimer = 0;
+            missedOrders = 0;
+        }
+        
         // Clear any existing pizzas
         for (Spatial pizza : activePizzas) {
             rootNode.detachChild(pizza);
@@ -571,24 +1179,26 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         }
     }
     
-    private void spawnPizzaAtShop() {
+    /**
+     * Makes sure a pizza is waiting at the shop.
+     *
+     * @return the pizza at the shop
+     */
+    private Spatial spawnPizzaAtShop() {
         // Only spawn if there are no pizzas at the shop already
-        boolean pizzaAlreadyAtShop = false;
         for (Spatial pizza : activePizzas) {
             // Check if pizza is close to the shop
             if (pizza.getWorldTranslation().distance(pizzaShop.getWorldTranslation()) < 3f) {
-                pizzaAlreadyAtShop = true;
-                break;
+                return pizza;
             }
         }
         
-        if (!pizzaAlreadyAtShop) {
-            Spatial pizza = createPizza();
-            Vector3f shopPos = pizzaShop.getWorldTranslation();
-            pizza.setLocalTranslation(shopPos.add(0, 1.5f, 0));
-            rootNode.attachChild(pizza);
-            activePizzas.add(pizza);
-        }
+        Spatial pizza = createPizza();
+        Vector3f shopPos = pizzaShop.getWorldTranslation();
+        pizza.setLocalTranslation(shopPos.add(0, 1.5f, 0));
+        rootNode.attachChild(pizza);
+        activePizzas.add(pizza);
+        return pizza;
     }
     
     private void pickupPizza(Spatial pizza) {
@@ -597,7 +1207,9 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
             carriedPizza = pizza;
             // Reset delivery timer
             currentDeliveryTime = 0;
-            updateDeliveryTimer();
+            if (!rushHour) {
+                updateDeliveryTimer();
+            }
             
             // Show message
             messageText.setText("Deliver the pizza to a green platform!");
@@ -605,37 +1217,55 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
         }
     }
     
-    private void deliverPizza(Spatial deliveryLocation) {
+    /**
+     * Delivers the carried pizza to a delivery location; in rush hour, to the
+     * marker with the given location index, otherwise location is unused.
+     */
+    private void deliverPizza(int location) {
         if (holdingPizza) {
             // Calculate points based on delivery time
-            int timePoints = (int) Math.max(1, deliveryTimeLimit - currentDeliveryTime);
-            int deliveryPoints = 100 + timePoints;
-            
-            score += deliveryPoints;
-            deliveriesCompleted++;
-            
-            // Update UI
-            updateScoreText();
-            messageText.setText("Pizza delivered! +" + deliveryPoints + " points");
-            messageText.setColor(ColorRGBA.Yellow);
-            
-            // Remove carried pizza
-            if (carriedPizza != null) {
-                rootNode.detachChild(carriedPizza);
-                activePizzas.remove(carriedPizza);
-                carriedPizza = null;
-            }
-            
-            holdingPizza = false;
-            
-            // Spawn new pizza at shop
-            spawnPizzaAtShop();
-            
-            // Add time bonus for quick delivery
-            if (currentDeliveryTime < deliveryTimeLimit * 0.5f) {
-                gameTime += 15; // 15 seconds bonus
-                messageText.setText(messageText.getText() + " Time bonus: +15 seconds!");
+            float timeLeft = deliveryTimeLimit - currentDeliveryTime;
+            if (rushHour) {
+                // Only platforms with a waiting order accept pizzas
+                timeLeft = orderScheduler.completeOrder(location, gameClock);
+                if (timeLeft < 0) {
+                    return;
+                }
+                deliveryMarkers.setActive(location, false);
             }
+            int timePoints = (int) Math.max(1, timeLeft);
+            completeDelivery(100 + timePoints, timeLeft);
+        }
+    }
+    
+    /**
+     * Scores a delivery and sends the player back to the shop for the next pizza.
+     */
+    private void completeDelivery(int deliveryPoints, float timeLeft) {
+        score += deliveryPoints;
+        deliveriesCompleted++;
+        
+        // Update UI
+        updateScoreText();
+        messageText.setText("Pizza delivered! +" + deliveryPoints + " points");
+        messageText.setColor(ColorRGBA.Yellow);
+        
+        // Remove carried pizza
+        if (carriedPizza != null) {
+            rootNode.detachChild(carriedPizza);
+            activePizzas.remove(carriedPizza);
+            carriedPizza = null;
+        }
+        
+        holdingPizza = false;
+        
+        // Spawn new pizza at shop
+        spawnPizzaAtShop();
+        
+        // Add time bonus for quick delivery
+        if (timeLeft > deliveryTimeLimit * 0.5f) {
+            gameTime += 15; // 15 seconds bonus
+            messageText.setText(messageText.getText() + " Time bonus: +15 seconds!");
         }
     }
     
@@ -653,11 +1283,21 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
     private void endGame(boolean win) {
         state = win ? GameState.WIN : GameState.GAME_OVER;
         
+        // Replays repeat a run that was already recorded
+        String best = "";
+        if (highScores != null) {
+            if (replayer == null) {
+                highScores.record(new HighScoreStore.Run(System.currentTimeMillis(), CITY_SEED, score,
+                        deliveriesCompleted, 180 - gameTime, win, rushHour));
+            }
+            best = "  Best: " + Math.max(score, highScores.getBestScore());
+        }
+        
         if (win) {
-            messageText.setText("You win! Final score: " + score + "\nPress R to play again");
+            messageText.setText("You win! Final score: " + score + best + "\nPress R to play again");
             messageText.setColor(ColorRGBA.Green);
         } else {
-            messageText.setText("Game Over! Final score: " + score + "\nPress R to play again");
+            messageText.setText("Game Over! Final score: " + score + best + "\nPress R to play again");
             messageText.setColor(ColorRGBA.Red);
         }
         
@@ -669,6 +1309,19 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
 
     @Override
     public void onAction(String name, boolean isPressed, float tpf) {
+        if (state == GameState.LOADING) {
+            return;
+        }
+        
+        if (recorder != null) {
+            try {
+                recorder.recordAction(name, isPressed);
+            } catch (IOException e) {
+                e.printStackTrace();
+                recorder = null;
+            }
+        }
+        
         if (name.equals("Left")) {
             left = isPressed;
         } else if (name.equals("Right")) {
@@ -687,27 +1340,50 @@ public class PizzaParkour extends SimpleApplication implements ActionListener, P
     }
 
     @Override
-    public void collision(PhysicsCollisionEvent event) {
-        // Check for collision between player and objects
-        if (state == GameState.PLAYING) {
-            String a = event.getNodeA().getName();
-            String b = event.getNodeB().getName();
-            
-            // Check for pizza pickup (player colliding with pizza)
-            if (a.startsWith("Pizza") || b.startsWith("Pizza")) {
-                Spatial pizza = a.startsWith("Pizza") ? event.getNodeA() : event.getNodeB();
-                
-                // Only pickup if we're near the pizza shop
-                if (pizza.getWorldTranslation().distance(pizzaShop.getWorldTranslation()) < 5f &&
-                        !holdingPizza) {
-                    pickupPizza(pizza);
-                }
+    public void destroy() {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            
-            // Check for pizza delivery (player with pizza colliding with delivery location)
-            if ((a.startsWith("DeliveryLocation") || b.startsWith("DeliveryLocation")) && holdingPizza) {
-                Spatial delivery = a.startsWith("DeliveryLocation") ? event.getNodeA() : event.getNodeB();
-                deliverPizza(delivery);
+        }
+        if (courierClient != null) {
+            courierClient.close();
+        }
+        if (crowd != null) {
+            crowd.shutdown();
+        }
+        if (highScores != null) {
+            try {
+                highScores.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        profiler.shutdown();
+        super.destroy();
+    }
+
+    @Override
+    public void collision(PhysicsCollisionEvent event) {
+        long start = System.nanoTime();
+        handleCollision(event);
+        collisionTime.recordSince(start);
+    }
+    
+    private void handleCollision(PhysicsCollisionEvent event) {
+        // Check for collision between player and objects; online the server decides
+        if (state == GameState.PLAYING && courierClient == null) {
+            switch (pizzaContacts.check(event, holdingPizza)) {
+                case PICKUP:
+                    pickupPizza(pizzaContacts.getPizza());
+                    break;
+                case DELIVERY:
+                    deliverPizza(-1);
+                    break;
+                default:
+                    break;
             }
         }
     }